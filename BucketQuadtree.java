@@ -0,0 +1,285 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A bucket (point-region) quadtree: each region splits at its midpoint rather than at a point,
+ * and only the leaves hold points, up to a fixed capacity each, in flat arrays. So the shape
+ * depends on where the points are rather than on the order they arrive in, the tree is
+ * shallower than a PointQuadtree of the same points, and each leaf is scanned in a simple loop.
+ *
+ * Bounds and splits are doubles throughout, so points a fraction of a unit apart are kept apart. A tree
+ * set to grow (setGrowing) takes points outside its rectangle too, by doubling the root outward toward
+ * them until they fit, with the old root becoming one quadrant of the new one; otherwise they are dropped.
+ */
+public class BucketQuadtree<E extends Point2D> implements SpatialIndex<E> {
+	public static final int DEFAULT_CAPACITY = 8;	// points per leaf, unless given
+	private static final int MAX_DEPTH = 32;		// leaves this deep just grow rather than split
+
+	private final int capacity;						// most points a leaf holds before splitting
+	private Node<E> root;							// replaced by a bigger one when growing
+	private boolean growing = false;				// whether to grow to take points outside the rectangle
+
+	/**
+	 * A region of the tree: either a leaf holding points, or split into four children
+	 * (numbered as in PointQuadtree: 1 upper right, 2 upper left, 3 lower left, 4 lower right)
+	 */
+	private static class Node<E extends Point2D> {
+		final double x1, y1, x2, y2;	// the region
+		int size;						// number of points in this subtree
+
+		Node<E> c1, c2, c3, c4;			// children, all null for a leaf
+		double[] coords;				// leaf only: x, y of each point, interleaved
+		Object[] points;				// leaf only: the points themselves (in the same order)
+
+		Node(double x1, double y1, double x2, double y2, int capacity) {
+			this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+			coords = new double[2*capacity];
+			points = new Object[capacity];
+		}
+
+		boolean isLeaf() {
+			return c1 == null;
+		}
+
+		/**
+		 * Returns the child whose quadrant holds the position
+		 */
+		Node<E> childFor(double px, double py) {
+			// where the children actually meet (a grown root's split needn't be exactly its midpoint)
+			double mx = c2.x2, my = c2.y2;
+			if (py < my) return (px < mx) ? c2 : c1;
+			return (px < mx) ? c3 : c4;
+		}
+
+		/**
+		 * Appends the point to this leaf, growing its arrays if needed
+		 */
+		void add(Point2D p, double px, double py) {
+			if (size == points.length) {
+				coords = Arrays.copyOf(coords, 4*size);
+				points = Arrays.copyOf(points, 2*size);
+			}
+			coords[2*size] = px; coords[2*size+1] = py;
+			points[size++] = p;
+		}
+
+		/**
+		 * Returns whether all the points in this leaf are at the same spot (so splitting can't separate them)
+		 */
+		boolean allCoincident() {
+			for (int i = 1; i < size; i++) {
+				if (coords[2*i] != coords[0] || coords[2*i+1] != coords[1]) return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Initializes an empty tree over the rectangle, with the default leaf capacity
+	 */
+	public BucketQuadtree(double x1, double y1, double x2, double y2) {
+		this(x1, y1, x2, y2, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Initializes an empty tree over the rectangle
+	 * @param capacity	how many points a leaf holds before it splits
+	 */
+	public BucketQuadtree(double x1, double y1, double x2, double y2, int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("leaf capacity must be positive, not "+capacity);
+		this.capacity = capacity;
+		root = new Node<E>(x1, y1, x2, y2, capacity);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public double getX1() {
+		return root.x1;
+	}
+
+	public double getY1() {
+		return root.y1;
+	}
+
+	public double getX2() {
+		return root.x2;
+	}
+
+	public double getY2() {
+		return root.y2;
+	}
+
+	/**
+	 * Sets whether points outside the rectangle grow it to fit them (rather than being dropped)
+	 */
+	public void setGrowing(boolean growing) {
+		this.growing = growing;
+	}
+
+	public boolean isGrowing() {
+		return growing;
+	}
+
+	/**
+	 * Inserts the point into the tree, splitting its leaf if that leaves it over capacity
+	 */
+	public void insert(E p) {
+		double px = p.getX(), py = p.getY();
+		if (!(root.x1 <= px && px <= root.x2 && root.y1 <= py && py <= root.y2)) {		// outside (or NaN)
+			if (!growing || Double.isNaN(px+py) || Double.isInfinite(px+py)) return;	// nowhere to put it
+			while (px < root.x1 || px > root.x2 || py < root.y1 || py > root.y2) grow(px, py);
+		}
+
+		// depths are counted on the way down, from whatever the root now is, so growing needn't touch the nodes below
+		Node<E> n = root;
+		int depth = 0;
+		while (!n.isLeaf()) {
+			n.size++;
+			n = n.childFor(px, py);
+			depth++;
+		}
+		n.add(p, px, py);
+
+		// if everything went into the same quadrant, that child needs splitting in turn
+		while (n.size > capacity && depth < MAX_DEPTH && !n.allCoincident()) {
+			split(n);
+			n = n.childFor(px, py);
+			depth++;
+		}
+	}
+
+	/**
+	 * Turns a leaf into four children at its midpoint, handing its points down to them
+	 */
+	private void split(Node<E> n) {
+		double mx = (n.x1+n.x2)/2, my = (n.y1+n.y2)/2;
+		n.c1 = new Node<E>(mx, n.y1, n.x2, my, capacity);
+		n.c2 = new Node<E>(n.x1, n.y1, mx, my, capacity);
+		n.c3 = new Node<E>(n.x1, my, mx, n.y2, capacity);
+		n.c4 = new Node<E>(mx, my, n.x2, n.y2, capacity);
+		for (int i = 0; i < n.size; i++) {
+			double px = n.coords[2*i], py = n.coords[2*i+1];
+			n.childFor(px, py).add((Point2D) n.points[i], px, py);
+		}
+		n.coords = null;
+		n.points = null;
+	}
+
+	/**
+	 * Doubles the root in each direction, toward the position, keeping the old root as one of its quadrants
+	 * (and so everything below as it was, only a level deeper): a constant amount of work, whatever the tree holds
+	 */
+	private void grow(double px, double py) {
+		Node<E> old = root;
+		double w = old.x2-old.x1, h = old.y2-old.y1;
+		if (!(w > 0)) w = 1;			// a rectangle with no width or height can't double
+		if (!(h > 0)) h = 1;
+		boolean left = px < old.x1 || (px <= old.x2 && px < (old.x1+old.x2)/2);
+		boolean up = py < old.y1 || (py <= old.y2 && py < (old.y1+old.y2)/2);
+		// the new root's edges, and where it splits: the old root's near edges
+		double x1 = left ? old.x1-w : old.x1, x2 = left ? old.x2 : old.x2+w, mx = left ? old.x1 : old.x2;
+		double y1 = up ? old.y1-h : old.y1, y2 = up ? old.y2 : old.y2+h, my = up ? old.y1 : old.y2;
+		Node<E> grown = new Node<E>(x1, y1, x2, y2, capacity);
+		if (old.size > 0) {
+			grown.coords = null;
+			grown.points = null;
+			grown.size = old.size;
+			grown.c1 = (left && !up) ? null : new Node<E>(mx, y1, x2, my, capacity);
+			grown.c2 = (!left && !up) ? null : new Node<E>(x1, y1, mx, my, capacity);
+			grown.c3 = (!left && up) ? null : new Node<E>(x1, my, mx, y2, capacity);
+			grown.c4 = (left && up) ? null : new Node<E>(mx, my, x2, y2, capacity);
+			// the old root is the quadrant away from the position
+			if (left && !up) grown.c1 = old;
+			else if (!left && !up) grown.c2 = old;
+			else if (!left && up) grown.c3 = old;
+			else grown.c4 = old;
+		}
+		root = grown;
+	}
+
+	public int size() {
+		return root.size;
+	}
+
+	public List<E> allPoints() {
+		List<E> pointsList = new ArrayList<E>(root.size);
+		addToAllPoints(root, pointsList);
+		return pointsList;
+	}
+
+	/**
+	 * helper method for allPoints() that adds all the points under the node to the list
+	 * (recursion is fine here, as the depth is bounded by MAX_DEPTH, plus a level each time the root has grown)
+	 */
+	@SuppressWarnings("unchecked")
+	private static <E extends Point2D> void addToAllPoints(Node<E> n, List<E> pointList) {
+		if (n.isLeaf()) {
+			for (int i = 0; i < n.size; i++) pointList.add((E) n.points[i]);
+		}
+		else {
+			addToAllPoints(n.c1, pointList);
+			addToAllPoints(n.c2, pointList);
+			addToAllPoints(n.c3, pointList);
+			addToAllPoints(n.c4, pointList);
+		}
+	}
+
+	public List<E> findInCircle(double cx, double cy, double cr) {
+		List<E> circleList = new ArrayList<E>();
+		findInCircle(cx, cy, cr, circleList::add);
+		return circleList;
+	}
+
+	public void findInCircle(double cx, double cy, double cr, Consumer<? super E> action) {
+		findPoints(root, cx, cy, cr, action);
+	}
+
+	/**
+	 * helper method for findInCircle() that passes on the points under the node that are in the circle
+	 */
+	@SuppressWarnings("unchecked")
+	private static <E extends Point2D> void findPoints(Node<E> n, double cx, double cy, double cr, Consumer<? super E> action) {
+		if (!Geometry.circleIntersectsRectangle(cx, cy, cr, n.x1, n.y1, n.x2, n.y2)) return;
+
+		if (n.isLeaf()) {
+			double[] coords = n.coords;
+			for (int i = 0; i < n.size; i++) {
+				if (Geometry.pointInCircle(coords[2*i], coords[2*i+1], cx, cy, cr)) action.accept((E) n.points[i]);
+			}
+		}
+		else {
+			findPoints(n.c1, cx, cy, cr, action);
+			findPoints(n.c2, cx, cy, cr, action);
+			findPoints(n.c3, cx, cy, cr, action);
+			findPoints(n.c4, cx, cy, cr, action);
+		}
+	}
+
+	public int countInCircle(double cx, double cy, double cr) {
+		return countPoints(root, cx, cy, cr);
+	}
+
+	/**
+	 * helper method for countInCircle(), taking a node's whole count when its region is inside the circle
+	 */
+	private static int countPoints(Node<?> n, double cx, double cy, double cr) {
+		double dx = Math.max(Math.abs(cx-n.x1), Math.abs(cx-n.x2));
+		double dy = Math.max(Math.abs(cy-n.y1), Math.abs(cy-n.y2));
+		if (dx*dx + dy*dy <= cr*cr) return n.size;
+		if (!Geometry.circleIntersectsRectangle(cx, cy, cr, n.x1, n.y1, n.x2, n.y2)) return 0;
+
+		if (n.isLeaf()) {
+			int num = 0;
+			for (int i = 0; i < n.size; i++) {
+				if (Geometry.pointInCircle(n.coords[2*i], n.coords[2*i+1], cx, cy, cr)) num++;
+			}
+			return num;
+		}
+		return countPoints(n.c1, cx, cy, cr) + countPoints(n.c2, cx, cy, cr)
+				+ countPoints(n.c3, cx, cy, cr) + countPoints(n.c4, cx, cy, cr);
+	}
+}
@@ -9,44 +9,115 @@ import javax.swing.*;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 /**
  * Using a quadtree for collision detection
  * 
+ * Each step runs on a simulation thread rather than the Swing thread: moving the blobs (in parallel,
+ * when there are many), indexing them and finding the colliders, then copying where everything is
+ * into a frame for drawing. There are two frames, one being filled while the other is shown, so the
+ * Swing thread only ever draws a finished step, and a slow step delays the next frame rather than
+ * freezing the window; a timer tick that comes while a step is still running is skipped.
+ * 
+ * Blobs that move far in a step are checked along their whole path rather than just where they end up,
+ * so fast ones can't pass through others unnoticed even with a long delay between steps.
+ * 
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Spring 2015
  * @author CBK, Spring 2016, updated for blobs
  * @author CBK, Fall 2016, using generic PointQuadtree
  */
 public class CollisionGUI extends DrawingGUI {
 	private static final int width=800, height=600;		// size of the universe
+	private static final int PARALLEL_STEP = 2048;		// at least this many blobs are moved in parallel
 
+	// only touched by the simulation thread
 	private List<Blob> blobs;							// all the blobs
-	private List<Blob> colliders;						// the blobs who collided at this step
+	private Set<Blob> colliders;						// the blobs who collided at this step
+	private PointQuadtree<Blob> blobTree;				// holds the blobs, kept up to date as they move
+														// (null when blobs come or go, to be rebuilt)
+	private Set<Blob> offTree;							// those off screen, so not in the tree (while it's kept)
+	private GridIndex<Blob> blobGrid;					// the grid, re-sorted from scratch each step
+	private LooseQuadtree<Blob> blobLoose;				// the blobs by their own sizes, made afresh each step
+	private Frame back = new Frame();					// the frame being filled
+
+	// only touched by the Swing thread
 	private char blobType = 'b';						// what type of blob to create
-	private char collisionHandler = 'c';				// when there's a collision, 'c'olor them, or 'd'estroy them
 	private int delay = 100;							// timer control
 
-	private PointQuadtree<Blob> blobTree;				// holds the blobs
+	// shared between them
+	private volatile char collisionHandler = 'c';		// when there's a collision, 'c'olor them, or 'd'estroy them
+	private volatile char indexType = 't';				// what finds collisions: the 't'ree, a 'g'rid, or a 'l'oose tree
+	private final Queue<Blob> added = new ConcurrentLinkedQueue<Blob>();	// new blobs, for the next step to take in
+	private final AtomicReference<Frame> shown = new AtomicReference<Frame>(new Frame());	// the latest finished frame
+	private final AtomicBoolean stepping = new AtomicBoolean(false);	// whether a step is under way
+	private final ExecutorService simulation = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "collision simulation");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Where every blob was at the end of a step, and which had collided: all the drawing needs, copied
+	 * so that the next step can go on moving the blobs meanwhile. Whoever is using a frame (filling or
+	 * drawing it) holds its lock.
+	 */
+	private static class Frame {
+		int n;								// number of blobs
+		double[] xs = new double[0], ys = new double[0], rs = new double[0];
+		boolean[] collided = new boolean[0];
+		boolean showColliders;				// whether to draw the colliders in red
+
+		/**
+		 * Copies the blobs in, growing the arrays if needed
+		 */
+		void fill(List<Blob> blobs, Set<Blob> colliders, boolean showColliders) {
+			n = blobs.size();
+			if (xs.length < n) {
+				int capacity = Math.max(n, 2*xs.length);
+				xs = new double[capacity]; ys = new double[capacity]; rs = new double[capacity];
+				collided = new boolean[capacity];
+			}
+			for (int i = 0; i < n; i++) {
+				Blob b = blobs.get(i);
+				xs[i] = b.x; ys[i] = b.y; rs[i] = b.r;
+				collided[i] = colliders != null && colliders.contains(b);
+			}
+			this.showColliders = showColliders;
+		}
+	}
 
 	public CollisionGUI() {
 		super("super collider", width, height);
 
 		blobs = new ArrayList<Blob>();
-		colliders = new ArrayList<Blob>();
+		colliders = new HashSet<Blob>();
 
 		// Timer drives the animation.
 		startTimer();
 	}
 
 	/**
-	 * Adds a blob of the current blobType at the location
+	 * Adds a blob of the current blobType at the location (as of the next step)
 	 */
 	private void add(int x, int y) {
 		if (blobType=='b') {
-			blobs.add(new Bouncer(x,y,width,height));
+			added.add(new Bouncer(x,y,width,height));
 		}
 		else if (blobType=='w') {
-			blobs.add(new Wanderer(x,y));
+			added.add(new Wanderer(x,y));
 		}
 		else {
 			System.err.println("Unknown blob type "+blobType);
@@ -85,68 +156,207 @@ public class CollisionGUI extends DrawingGUI {
 			collisionHandler = k;
 			System.out.println("collision: "+k);
 		}
+		else if (k == 'g') { // switch between the quadtree, the grid and the loose quadtree
+			char next = (indexType == 't') ? 'g' : (indexType == 'g') ? 'l' : 't';
+			indexType = next;
+			System.out.println("index: "+(next == 't' ? "quadtree" : next == 'g' ? "grid" : "loose quadtree"));
+		}
 		else { // set the type for new blobs
 			blobType = k;			
 		}
 	}
 
 	/**
-	 * DrawingGUI method, here drawing all the blobs and then re-drawing the colliders in red
+	 * DrawingGUI method, here drawing all the blobs of the latest finished step, with the colliders in red
 	 */
 	public void draw(Graphics g) {
-		// Ask all the blobs to draw themselves.
-		for (Blob b : blobs) {
-			g.setColor(Color.BLACK); // draw each blob in black
-			b.draw(g);
-		}
-
-		// Ask the colliders to draw themselves in red.
-		if (collisionHandler == 'c') {		// if set to 'c'
-			for (Blob c : colliders) {
-				g.setColor(Color.RED);		// draw each collider in red
-				c.draw(g);
+		Frame frame = shown.get();
+		synchronized (frame) {
+			for (int i = 0; i < frame.n; i++) {
+				// each in black, or red if it collided (and collisions are being colored)
+				g.setColor(frame.showColliders && frame.collided[i] ? Color.RED : Color.BLACK);
+				double r = frame.rs[i];
+				g.fillOval((int)(frame.xs[i]-r), (int)(frame.ys[i]-r), (int)(2*r), (int)(2*r));
 			}
 		}
 	}
 
 	/**
-	 * Sets colliders to include all blobs in contact with another blob
+	 * Sets colliders to include all blobs in contact with another blob, or that ran into one on the way
+	 * from where they were to where they are now
+	 * @param oldXs, oldYs	where each blob was at the start of the step
+	 * @param using			which index to find them with (indexType, as read once for the step)
 	 */
-	private void findColliders() {
-		// Create the tree
-		blobTree = new PointQuadtree<>(blobs.get(0), 0, 0, width, height);	// with the 0th blob
-		for (Blob b : blobs) {					// inserting all blobs in list to blobTree
-			if (b == blobs.get(0)) continue;	// not adding the 0th blob twice
-			blobTree.insert(b);
-		}
+	private void findColliders(double[] oldXs, double[] oldYs, char using) {
+		if (colliders == null) colliders = new HashSet<Blob>();	// if colliders = null after 'd'estruction, start afresh
+																// otherwise, add to colliders so they stay red after 'c'ollision
 
-		for (Blob c : blobs) {		// for each blob, finding any other blob that collides with it
-			// found is a list of blobs colliding with current blob
-			List<Blob> found = blobTree.findInCircle(c.x, c.y, 2*c.r);
+		// every pair of blobs that touch, found once each in a single pass over the index: pairs within reach
+		// of the two biggest blobs are candidates, then checked against their own radii
+		double maxR = 0;
+		for (Blob b : blobs) maxR = Math.max(maxR, b.r);
+		BiConsumer<Blob, Blob> check = (a, b) -> {
+			if (Geometry.pointInCircle(a.x, a.y, b.x, b.y, a.r + b.r)) {
+				colliders.add(a);
+				colliders.add(b);
+			}
+		};
 
-			// removing the current blob from its own found list
-			if (found.size() == 1) found.remove(c);
+		// only the index in use is kept, so that none left over from an earlier step can be queried
+		if (using != 'g') blobGrid = null;
+		if (using != 'l') blobLoose = null;
+		if (using == 'l') {
+			blobTree = null;		// not kept up to date while the loose tree is in use
+			// each blob as deep as its own size allows, so only blobs whose circles meet are paired,
+			// rather than all those within reach of the biggest
+			blobLoose = new LooseQuadtree<Blob>(0, 0, width, height, b -> b.r);
+			for (Blob b : blobs) blobLoose.insert(b);
+			blobLoose.findAllOverlappingPairs((a, b) -> {
+				colliders.add(a);
+				colliders.add(b);
+			});
+		}
+		else if (using == 'g') {
+			blobTree = null;		// not kept up to date while the grid is in use
+			// cells as wide as a collision reaches, so a blob's colliders are all in its own cell or a neighbor's
+			// (but at least a pixel, as blobs with no size at all would otherwise make cells with none)
+			double cellSize = Math.max(1, 2*maxR);
+			if (blobGrid == null || blobGrid.getCellSize() != cellSize) blobGrid = new GridIndex<Blob>(0, 0, width, height, cellSize);
+			blobGrid.rebuild(blobs);
+			blobGrid.findAllPairsWithin(2*maxR, check);
+		}
+		else {
+			// Create the tree if needed, balanced around medians so sorted or clustered blobs don't make it a chain;
+			// loose, so that blobs moving a few pixels per step mostly stay in their nodes
+			if (blobTree == null) {
+				blobTree = PointQuadtree.build(blobs, 0, 0, width, height);
+				if (blobTree == null) return;		// every blob is off screen
+				blobTree.setLoose(true);
+				offTree = new HashSet<Blob>();
+				for (Blob b : blobs) if (!onScreen(b)) offTree.add(b);
+			}
+			blobTree.findAllPairsWithin(2*maxR, check);
+		}
+		findSweptColliders(oldXs, oldYs, maxR, using);
+	}
 
-			if (colliders == null) colliders = found;	// if colliders = null after 'd'estruction, set it to found
-			else colliders.addAll(found);				// otherwise, add to colliders so they stay red after 'c'ollision
+	/**
+	 * Adds to colliders the blobs that moved more than their radius this step, and so could have passed
+	 * right through another between its start and end, along with whatever they ran into on the way.
+	 * (Slower blobs can't get through one another without overlapping at the start or end of a step,
+	 * or at most clipping an edge in between.) Candidates are the blobs near the fast one's path, by
+	 * however far any blob moved; each is then checked over the step, both moving steadily.
+	 * @param using		the index findColliders just brought up to date
+	 */
+	private void findSweptColliders(double[] oldXs, double[] oldYs, double maxR, char using) {
+		int n = blobs.size();
+		double maxMove = 0;
+		for (int i = 0; i < n; i++) maxMove = Math.max(maxMove, Math.hypot(blobs.get(i).x-oldXs[i], blobs.get(i).y-oldYs[i]));
+
+		Map<Blob, Integer> index = null;		// where each blob is in the list, to find where it started
+		for (int i = 0; i < n; i++) {
+			Blob a = blobs.get(i);
+			double ax = oldXs[i], ay = oldYs[i];
+			if (Math.hypot(a.x-ax, a.y-ay) <= a.r) continue;
+			if (index == null) {
+				index = new IdentityHashMap<Blob, Integer>(2*n);
+				for (int j = 0; j < n; j++) index.put(blobs.get(j), j);
+			}
+			Map<Blob, Integer> where = index;
+			Consumer<Blob> sweep = b -> {
+				if (b == a) return;
+				int j = where.get(b);
+				// b as standing still, with a moving relative to it
+				if (PointQuadtree.timeOfImpact(ax-oldXs[j], ay-oldYs[j], a.x-b.x, a.y-b.y, 0, 0, a.r + b.r) >= 0) {
+					colliders.add(a);
+					colliders.add(b);
+				}
+			};
+			double reach = a.r + maxR + maxMove;
+			double half = Math.hypot(a.x-ax, a.y-ay)/2;
+			// (the loose tree knows each blob's own size, so needn't reach as far as the biggest)
+			if (using == 'l') blobLoose.findOverlapping((ax+a.x)/2, (ay+a.y)/2, half + a.r + maxMove, sweep);
+			else if (using == 'g') blobGrid.findInCircle((ax+a.x)/2, (ay+a.y)/2, half + reach, sweep);
+			else blobTree.findAlongSegment(ax, ay, a.x, a.y, reach, sweep);
 		}
 	}
 
 	/**
-	 * DrawingGUI method, here moving all the blobs and checking for collisions
+	 * Returns whether the blob is within the universe, and so can be held in the tree
+	 */
+	private static boolean onScreen(Blob b) {
+		return 0 <= b.x && b.x <= width && 0 <= b.y && b.y <= height;
+	}
+
+	/**
+	 * DrawingGUI method, here starting the next step on the simulation thread, unless one is still going
 	 */
 	public void handleTimer() {
-		// Ask all the blobs to move themselves.
-		for (Blob blob : blobs) {
-			blob.step();
-		}
-		// Check for collisions
-		if (blobs.size() > 0) {
-			findColliders();
-			if (collisionHandler=='d') {
-				blobs.removeAll(colliders);
-				colliders = null;
+		if (stepping.compareAndSet(false, true)) simulation.execute(this::step);
+	}
+
+	/**
+	 * Moves all the blobs and checks for collisions, then shows the result (on the simulation thread)
+	 */
+	private void step() {
+		try {
+			// Take in any new blobs
+			boolean anyAdded = false;
+			for (Blob b = added.poll(); b != null; b = added.poll()) {
+				blobs.add(b);
+				anyAdded = true;
+			}
+			if (anyAdded) blobTree = null;		// rebuild with the new blobs
+
+			// Ask all the blobs to move themselves (each independently of the others, so in parallel when
+			// there are plenty), then move them in the tree too
+			int n = blobs.size();
+			double[] oldXs = new double[n], oldYs = new double[n];
+			IntStream moves = IntStream.range(0, n);
+			if (n >= PARALLEL_STEP) moves = moves.parallel();
+			moves.forEach(i -> {
+				Blob blob = blobs.get(i);
+				oldXs[i] = blob.x; oldYs[i] = blob.y;
+				blob.step();
+			});
+			for (int i = 0; i < n && blobTree != null; i++) {
+				Blob blob = blobs.get(i);
+				if (offTree.contains(blob)) {
+					// one off screen isn't in the tree, until it comes back on
+					if (onScreen(blob)) {
+						blobTree.insert(blob);
+						offTree.remove(blob);
+					}
+				}
+				else if (!blobTree.update(blob, oldXs[i], oldYs[i])) {
+					// it has wandered off screen, and so out of the tree; unless it's the tree's only blob,
+					// which can't be let go of, so rebuild it instead
+					if (blobTree.size() == 1 && blobTree.getPoint() == blob) blobTree = null;
+					else offTree.add(blob);
+				}
 			}
+
+			// Check for collisions (with the handler and index as they are now, for the whole step)
+			char handler = collisionHandler;
+			char using = indexType;
+			if (blobs.size() > 0) {
+				findColliders(oldXs, oldYs, using);
+				if (handler=='d') {
+					blobs.removeAll(colliders);
+					if (!colliders.isEmpty()) blobTree = null;		// rebuild without the destroyed blobs
+					colliders = null;
+				}
+			}
+
+			// Hand the step over for drawing, and take the frame it replaces to fill next time
+			Frame frame = back;
+			synchronized (frame) {
+				frame.fill(blobs, colliders, handler == 'c');
+			}
+			back = shown.getAndSet(frame);
+		}
+		finally {
+			stepping.set(false);
 		}
 		// Now update the drawing
 		repaint();
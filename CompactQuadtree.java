@@ -0,0 +1,191 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * A point quadtree with the same shape and answers as PointQuadtree, but with no object per node:
+ * node i's coordinates, children and point live at index i of a few parallel arrays, and each point
+ * is known by its id, the order it was inserted in (0, 1, 2, ...). The coordinates are copied in at
+ * insert, so queries never call back into the points, and the regions are worked out on the way down
+ * rather than stored.
+ *
+ * Unlike PointQuadtree, which keeps points at the very same position together in one node, this tree
+ * still gives each such point a node of its own, one level below the last; so with coincident points
+ * the shape differs, and the points are found in a different order (though the same ones are found).
+ */
+public class CompactQuadtree<E extends Point2D> implements SpatialIndex<E> {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final int x1, y1, x2, y2;		// the region of the whole tree
+	private int size;						// number of points (= nodes) so far
+	private double[] xs, ys;				// coordinates of node i's point
+	private int[] children;					// children[4*i + q-1] is node i's child at quadrant q; 0 for none
+											// (the root, node 0, is nobody's child)
+	private Object[] points;				// node i's point, whose id is i
+
+	/**
+	 * Initializes an empty tree over the rectangle
+	 */
+	public CompactQuadtree(int x1, int y1, int x2, int y2) {
+		this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+		xs = new double[INITIAL_CAPACITY];
+		ys = new double[INITIAL_CAPACITY];
+		children = new int[4*INITIAL_CAPACITY];
+		points = new Object[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Returns the point with the given id
+	 */
+	@SuppressWarnings("unchecked")
+	public E get(int id) {
+		return (E) points[id];
+	}
+
+	/**
+	 * Inserts the point into the tree, routing it the same way PointQuadtree.insert does
+	 */
+	public void insert(E p) {
+		double px = p.getX(), py = p.getY();
+		if (px < x1 || px > x2 || py < y1 || py > y2) return;		// outside, so nowhere to put it
+
+		int id = size;
+		if (id == points.length) grow();
+		xs[id] = px; ys[id] = py;
+		points[id] = p;
+		size++;
+		if (id == 0) return;										// the root
+
+		// below the root, the point is always within the region, so the anchor alone decides the quadrant
+		int n = 0;
+		while (true) {
+			int slot = 4*n + quadrantOf(n, px, py) - 1;
+			if (children[slot] == 0) {
+				children[slot] = id;
+				return;
+			}
+			n = children[slot];
+		}
+	}
+
+	/**
+	 * Returns the quadrant, 1-4, of node n's point that a position within n's region falls in
+	 */
+	private int quadrantOf(int n, double px, double py) {
+		// x, y coordinates of the node's point, as PointQuadtree uses them
+		int x = (int) xs[n];
+		int y = (int) ys[n];
+
+		if (x <= px && py <= y) return 1;
+		if (px <= x && py <= y) return 2;
+		if (px <= x && y <= py) return 3;
+		return 4;
+	}
+
+	/**
+	 * Doubles the room in each of the arrays
+	 */
+	private void grow() {
+		int capacity = 2*points.length;
+		xs = Arrays.copyOf(xs, capacity);
+		ys = Arrays.copyOf(ys, capacity);
+		children = Arrays.copyOf(children, 4*capacity);
+		points = Arrays.copyOf(points, capacity);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns roughly how many bytes the tree's own arrays take per point, assuming 4-byte references
+	 * (not counting the points themselves, or the room not yet used)
+	 */
+	public static int bytesPerPoint() {
+		return 8 + 8 + 4*4 + 4;		// x, y, four children, the point reference
+	}
+
+	public List<E> allPoints() {
+		List<E> pointsList = new ArrayList<E>(size);
+		for (int i = 0; i < size; i++) pointsList.add(get(i));
+		return pointsList;
+	}
+
+	public List<E> findInCircle(double cx, double cy, double cr) {
+		List<E> circleList = new ArrayList<E>();
+		findIdsInCircle(cx, cy, cr, id -> circleList.add(get(id)));
+		return circleList;
+	}
+
+	public void findInCircle(double cx, double cy, double cr, Consumer<? super E> action) {
+		findIdsInCircle(cx, cy, cr, id -> action.accept(get(id)));
+	}
+
+	public int countInCircle(double cx, double cy, double cr) {
+		if (size == 0) return 0;
+
+		// walked as in findIdsInCircle, but just counting
+		int num = 0;
+		int[] stack = new int[5*32];
+		int top = push(stack, 0, 0, x1, y1, x2, y2);
+		while (top > 0) {
+			top -= 5;
+			int n = stack[top];
+			int rx1 = stack[top+1], ry1 = stack[top+2], rx2 = stack[top+3], ry2 = stack[top+4];
+			if (!Geometry.circleIntersectsRectangle(cx, cy, cr, rx1, ry1, rx2, ry2)) continue;
+			if (Geometry.pointInCircle(xs[n], ys[n], cx, cy, cr)) num++;
+
+			int x = (int) xs[n], y = (int) ys[n];
+			if (top + 4*5 > stack.length) stack = Arrays.copyOf(stack, 2*stack.length);
+			if (children[4*n+3] != 0) top = push(stack, top, children[4*n+3], x, y, rx2, ry2);
+			if (children[4*n+2] != 0) top = push(stack, top, children[4*n+2], rx1, y, x, ry2);
+			if (children[4*n+1] != 0) top = push(stack, top, children[4*n+1], rx1, ry1, x, y);
+			if (children[4*n] != 0) top = push(stack, top, children[4*n], x, ry1, rx2, y);
+		}
+		return num;
+	}
+
+	/**
+	 * Finds the ids of all points within the circle, in the order PointQuadtree.findInCircle would list them
+	 * @param cx		circle center x
+	 * @param cy  		circle center y
+	 * @param cr  		circle radius
+	 * @param action	called with the id of each point in the circle
+	 */
+	public void findIdsInCircle(double cx, double cy, double cr, IntConsumer action) {
+		if (size == 0) return;
+
+		// a stack of nodes still to visit, five ints each: the node and its region
+		int[] stack = new int[5*32];
+		int top = push(stack, 0, 0, x1, y1, x2, y2);
+		while (top > 0) {
+			top -= 5;
+			int n = stack[top];
+			int rx1 = stack[top+1], ry1 = stack[top+2], rx2 = stack[top+3], ry2 = stack[top+4];
+
+			// if circle intersects rectangle
+			if (!Geometry.circleIntersectsRectangle(cx, cy, cr, rx1, ry1, rx2, ry2)) continue;
+			if (Geometry.pointInCircle(xs[n], ys[n], cx, cy, cr)) action.accept(n);
+
+			// children pushed last to first, so they come off the stack in order
+			int x = (int) xs[n], y = (int) ys[n];
+			if (top + 4*5 > stack.length) stack = Arrays.copyOf(stack, 2*stack.length);
+			if (children[4*n+3] != 0) top = push(stack, top, children[4*n+3], x, y, rx2, ry2);
+			if (children[4*n+2] != 0) top = push(stack, top, children[4*n+2], rx1, y, x, ry2);
+			if (children[4*n+1] != 0) top = push(stack, top, children[4*n+1], rx1, ry1, x, y);
+			if (children[4*n] != 0) top = push(stack, top, children[4*n], x, ry1, rx2, y);
+		}
+	}
+
+	/**
+	 * Puts a node and its region on the stack at top
+	 * @return		the new top
+	 */
+	private static int push(int[] stack, int top, int n, int rx1, int ry1, int rx2, int ry2) {
+		stack[top] = n;
+		stack[top+1] = rx1; stack[top+2] = ry1; stack[top+3] = rx2; stack[top+4] = ry2;
+		return top + 5;
+	}
+}
@@ -0,0 +1,253 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * A point quadtree that any number of threads may insert into, remove from and query at once. Its nodes
+ * never change once made: a writer copies the path from the root down to where it changes the tree,
+ * leaving the rest shared with the old version, and then swaps in the new root if no other writer got
+ * there first (trying again against the newer tree if one did). So a query reads the root once and
+ * searches that version of the tree throughout, without locking, and never sees a write half done;
+ * each operation takes effect at the moment it reads (a query) or swaps (a write) the root.
+ *
+ * Nodes split and route points as PointQuadtree's do, so the same points inserted in the same order
+ * make the same shape of tree, and queries find them in the same order, except for points at the very
+ * same position: PointQuadtree keeps those together in one node, while here each still gets a node of
+ * its own, one level below the last.
+ */
+public class ConcurrentQuadtree<E extends Point2D> implements SpatialIndex<E> {
+	private final int x1, y1, x2, y2;								// the rectangle the tree covers
+	private final AtomicReference<Node<E>> root = new AtomicReference<Node<E>>();	// the current version (null when empty)
+	private final LongAdder retries = new LongAdder();				// writes that lost a race and had to be redone
+
+	/**
+	 * A node, fixed once made
+	 */
+	private static final class Node<E extends Point2D> {
+		final E point;						// the point anchoring this node
+		final int x1, y1, x2, y2;			// the region
+		final int sx, sy;					// where this node splits into quadrants
+		final Node<E> c1, c2, c3, c4;		// children
+		final int size;						// number of points in this subtree
+
+		Node(E point, int x1, int y1, int x2, int y2, Node<E> c1, Node<E> c2, Node<E> c3, Node<E> c4) {
+			this.point = point;
+			this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+			this.sx = (int) point.getX(); this.sy = (int) point.getY();
+			this.c1 = c1; this.c2 = c2; this.c3 = c3; this.c4 = c4;
+			this.size = 1 + sizeOf(c1) + sizeOf(c2) + sizeOf(c3) + sizeOf(c4);
+		}
+
+		Node<E> child(int quadrant) {
+			return quadrant == 1 ? c1 : quadrant == 2 ? c2 : quadrant == 3 ? c3 : c4;
+		}
+
+		/**
+		 * A copy of this node with the child at the quadrant replaced (by null, to remove it)
+		 */
+		Node<E> with(int quadrant, Node<E> child) {
+			return new Node<E>(point, x1, y1, x2, y2, quadrant == 1 ? child : c1, quadrant == 2 ? child : c2,
+					quadrant == 3 ? child : c3, quadrant == 4 ? child : c4);
+		}
+
+		/**
+		 * Returns the quadrant, 1-4, of this node's split that the position falls in, or 0 if outside the rectangle
+		 */
+		int quadrantOf(double px, double py) {
+			if (sx <= px && px <= x2 && y1 <= py && py <= sy) return 1;
+			if (x1 <= px && px <= sx && y1 <= py && py <= sy) return 2;
+			if (x1 <= px && px <= sx && sy <= py && py <= y2) return 3;
+			if (sx <= px && px <= x2 && sy <= py && py <= y2) return 4;
+			return 0;
+		}
+
+		/**
+		 * A new leaf holding the point, covering the quadrant's rectangle
+		 */
+		Node<E> leaf(int quadrant, E p) {
+			if (quadrant == 1) return new Node<E>(p, sx, y1, x2, sy, null, null, null, null);
+			if (quadrant == 2) return new Node<E>(p, x1, y1, sx, sy, null, null, null, null);
+			if (quadrant == 3) return new Node<E>(p, x1, sy, sx, y2, null, null, null, null);
+			return new Node<E>(p, sx, sy, x2, y2, null, null, null, null);
+		}
+	}
+
+	private static int sizeOf(Node<?> n) {
+		return (n == null) ? 0 : n.size;
+	}
+
+	/**
+	 * Initializes an empty tree covering the rectangle
+	 */
+	public ConcurrentQuadtree(int x1, int y1, int x2, int y2) {
+		this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+	}
+
+	/**
+	 * Inserts the point (unless it is outside the rectangle), as of the moment its new root is swapped in
+	 */
+	public void insert(E p) {
+		double px = p.getX(), py = p.getY();
+		if (px < x1 || px > x2 || py < y1 || py > y2) return;		// outside, so nowhere to put it
+		while (true) {
+			Node<E> old = root.get();
+			if (root.compareAndSet(old, inserted(old, p, x1, y1, x2, y2))) return;
+			retries.increment();
+		}
+	}
+
+	/**
+	 * Removes the point (the very object, not just one at the same position), rebuilding the subtree below
+	 * its node from what was there
+	 * @return		whether the point was in the tree
+	 */
+	public boolean remove(E p) {
+		while (true) {
+			Node<E> old = root.get();
+			List<Node<E>> path = new ArrayList<Node<E>>();
+			Node<E> n = old;
+			// following the point's position, as insert did, until reaching its node
+			while (n != null && n.point != p) {
+				path.add(n);
+				int quadrant = n.quadrantOf(p.getX(), p.getY());
+				n = (quadrant == 0) ? null : n.child(quadrant);
+			}
+			if (n == null) return false;		// not there in this version, so not there now
+
+			// the points below it, inserted afresh (in the order they were found, to keep much of the shape)
+			Node<E> replacement = null;
+			Deque<Node<E>> stack = new ArrayDeque<Node<E>>();
+			pushChildren(stack, n);
+			while (!stack.isEmpty()) {
+				Node<E> d = stack.pop();
+				replacement = inserted(replacement, d.point, n.x1, n.y1, n.x2, n.y2);
+				pushChildren(stack, d);
+			}
+			if (root.compareAndSet(old, copyPath(path, n.point, replacement))) return true;
+			retries.increment();
+		}
+	}
+
+	/**
+	 * Returns a new version of the subtree with the point added, sharing all but the path to it
+	 * @param top	the subtree (null for none yet, in which case the point's node covers the rectangle given)
+	 */
+	private static <E extends Point2D> Node<E> inserted(Node<E> top, E p, int x1, int y1, int x2, int y2) {
+		if (top == null) return new Node<E>(p, x1, y1, x2, y2, null, null, null, null);
+		// walking down (rather than recursing) so that a deep tree can't overflow the stack
+		List<Node<E>> path = new ArrayList<Node<E>>();
+		Node<E> n = top;
+		while (true) {
+			path.add(n);
+			int quadrant = n.quadrantOf(p.getX(), p.getY());
+			Node<E> child = n.child(quadrant);
+			if (child == null) return copyPath(path, p, n.leaf(quadrant, p));
+			n = child;
+		}
+	}
+
+	/**
+	 * Copies each node on the path, from the bottom up, with its child toward the point replaced
+	 * @param path		the nodes from the top of the subtree down (routing the point)
+	 * @param p			the point whose position the path follows
+	 * @param bottom	what goes below the last node on the path (or is the subtree itself, if the path is empty)
+	 */
+	private static <E extends Point2D> Node<E> copyPath(List<Node<E>> path, E p, Node<E> bottom) {
+		Node<E> child = bottom;
+		for (int i = path.size()-1; i >= 0; i--) {
+			Node<E> n = path.get(i);
+			child = n.with(n.quadrantOf(p.getX(), p.getY()), child);
+		}
+		return child;
+	}
+
+	/**
+	 * Pushes the node's children so that they pop in order, 1 to 4
+	 */
+	private static <E extends Point2D> void pushChildren(Deque<Node<E>> stack, Node<E> n) {
+		if (n.c4 != null) stack.push(n.c4);
+		if (n.c3 != null) stack.push(n.c3);
+		if (n.c2 != null) stack.push(n.c2);
+		if (n.c1 != null) stack.push(n.c1);
+	}
+
+	/**
+	 * Returns how many writes have had to be redone because another got in first
+	 */
+	public long getRetries() {
+		return retries.sum();
+	}
+
+	public int size() {
+		return sizeOf(root.get());
+	}
+
+	public List<E> allPoints() {
+		Node<E> top = root.get();
+		List<E> points = new ArrayList<E>(sizeOf(top));
+		if (top == null) return points;
+		Deque<Node<E>> stack = new ArrayDeque<Node<E>>();
+		stack.push(top);
+		while (!stack.isEmpty()) {
+			Node<E> n = stack.pop();
+			points.add(n.point);
+			pushChildren(stack, n);
+		}
+		return points;
+	}
+
+	public List<E> findInCircle(double cx, double cy, double cr) {
+		List<E> circleList = new ArrayList<E>();
+		findInCircle(cx, cy, cr, circleList::add);
+		return circleList;
+	}
+
+	/**
+	 * Finds all points within the circle in the tree as it was when the query started, whatever is
+	 * inserted or removed meanwhile
+	 * @param action	called with each point in the circle, in the order the list version above gives them
+	 * 					(which is PointQuadtree's order only if no two points are at the same position)
+	 */
+	public void findInCircle(double cx, double cy, double cr, Consumer<? super E> action) {
+		Node<E> top = root.get();
+		if (top == null) return;
+		Deque<Node<E>> stack = new ArrayDeque<Node<E>>();
+		stack.push(top);
+		while (!stack.isEmpty()) {
+			Node<E> n = stack.pop();
+			if (!Geometry.circleIntersectsRectangle(cx, cy, cr, n.x1, n.y1, n.x2, n.y2)) continue;
+			if (Geometry.pointInCircle(n.point.getX(), n.point.getY(), cx, cy, cr)) action.accept(n.point);
+			pushChildren(stack, n);
+		}
+	}
+
+	/**
+	 * Counts the points within the circle (in the tree as it was when the query started), taking each
+	 * subtree whose rectangle is wholly inside the circle at its size
+	 */
+	public int countInCircle(double cx, double cy, double cr) {
+		Node<E> top = root.get();
+		if (top == null) return 0;
+		int count = 0;
+		double r2 = cr*cr;
+		Deque<Node<E>> stack = new ArrayDeque<Node<E>>();
+		stack.push(top);
+		while (!stack.isEmpty()) {
+			Node<E> n = stack.pop();
+			// the rectangle's farthest corner from the center
+			double dx = Math.max(Math.abs(cx-n.x1), Math.abs(cx-n.x2)), dy = Math.max(Math.abs(cy-n.y1), Math.abs(cy-n.y2));
+			if (dx*dx + dy*dy <= r2) {
+				count += n.size;
+				continue;
+			}
+			if (!Geometry.circleIntersectsRectangle(cx, cy, cr, n.x1, n.y1, n.x2, n.y2)) continue;
+			if (Geometry.pointInCircle(n.point.getX(), n.point.getY(), cx, cy, cr)) count++;
+			pushChildren(stack, n);
+		}
+		return count;
+	}
+}
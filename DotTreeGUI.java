@@ -5,6 +5,9 @@ purpose: completing scaffold so that it can draw quadtrees for PS2.
  */
 
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 
 import javax.swing.*;
@@ -24,11 +27,13 @@ public class DotTreeGUI extends DrawingGUI {
 			// to color different levels differently
 
 	private PointQuadtree<Dot> tree = null;			// holds the dots
-	private char mode = 'a';						// 'a': adding; 'q': querying with the mouse
+	private char mode = 'a';						// 'a': adding; 'q': querying with the mouse; 'n': nearest to the mouse
 	private int mouseX, mouseY;						// current mouse location, when querying
 	private int mouseRadius = 10;					// circle around mouse location, for querying
 	private boolean trackMouse = false;				// if true, then print out where the mouse is as it moves
-	private List<Dot> found = null;					// who was found near mouse, when querying
+	private List<Dot> found = null;					// who was found near mouse, when querying (or nearest it)
+	private BufferedImage treeImage = null;			// the tree as last drawn, so that moving the mouse needn't redraw it
+													// (null to draw it afresh)
 	
 	public DotTreeGUI() {
 		super("dot tree", width, height);
@@ -58,7 +63,15 @@ public class DotTreeGUI extends DrawingGUI {
 
 			// if tree is null, we create a new tree at the clicked point
 			if (tree == null) tree = new PointQuadtree<Dot>(new Dot(x, y), 0, 0, width, height);
-			else tree.insert(new Dot(x, y));		// inserting a new dot to the tree
+			else {
+				Dot dot = new Dot(x, y);
+				tree.insert(dot);		// inserting a new dot to the tree
+				if (treeImage != null) {		// just the new dot's node, on top of the tree as already drawn
+					Graphics ig = treeImage.createGraphics();
+					drawInserted(ig, dot);
+					ig.dispose();
+				}
+			}
 		}
 
 		else if (mode == 'q' && tree != null) {		// if in querying mode
@@ -66,6 +79,11 @@ public class DotTreeGUI extends DrawingGUI {
 			found = tree.findInCircle(x, y, mouseRadius+dotRadius);	// detecting any blobs within the mouse circle
 		}
 
+		else if (mode == 'n' && tree != null) {		// if in nearest mode
+			// Set "found" to the dot closest to the mouse press, however far away
+			found = tree.kNearest(x, y, 1);
+		}
+
 		else {
 			System.out.println("clicked at ("+x+","+y+")");
 		}
@@ -73,12 +91,12 @@ public class DotTreeGUI extends DrawingGUI {
 	}
 
 	/**
-	 * DrawingGUI method, here toggling the mode between 'a' and 'q'
+	 * DrawingGUI method, here toggling the mode between 'a', 'q' and 'n'
 	 * and increasing/decreasing mouseRadius via +/-
 	 */
 	@Override
 	public void handleKeyPress(char key) {
-		if (key=='a' || key=='q') mode = key;
+		if (key=='a' || key=='q' || key=='n') mode = key;
 		else if (key=='+') {
 			mouseRadius += 10;
 		}
@@ -99,10 +117,20 @@ public class DotTreeGUI extends DrawingGUI {
 	 */
 	@Override
 	public void draw(Graphics g) {
-		if (tree != null) drawTree(g, tree, 0);
+		if (tree != null) {
+			if (treeImage == null) {
+				treeImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+				Graphics ig = treeImage.createGraphics();
+				drawTree(ig, tree, 0);
+				ig.dispose();
+			}
+			g.drawImage(treeImage, 0, 0, null);
+		}
 		if (mode == 'q') {
 			g.setColor(Color.BLACK);
 			g.drawOval(mouseX-mouseRadius, mouseY-mouseRadius, 2*mouseRadius, 2*mouseRadius);			
+		}
+		if (mode == 'q' || mode == 'n') {
 			if (found != null) {
 				g.setColor(Color.BLACK);
 				for (Dot d : found) {
@@ -113,29 +141,71 @@ public class DotTreeGUI extends DrawingGUI {
 	}
 
 	/**
-	 * Draws the dot tree
+	 * Draws the dot tree, drawing just the top dot of any subtree whose rectangle is a pixel or less across,
+	 * as all its dots would land on the same spot anyway (the whole tree is drawn, as it goes into the
+	 * cached image, which has to hold all of it whatever part of the window is being repainted)
 	 * @param g		the graphics object for drawing
 	 * @param tree	a dot tree (not necessarily root)
 	 * @param level	how far down from the root qt is (0 for root, 1 for its children, etc.)
 	 */
 	public void drawTree(Graphics g, PointQuadtree<Dot> tree, int level) {
+		// nodes still to draw, and their levels (a stack rather than recursion, as a tree can be deep)
+		Deque<PointQuadtree<Dot>> nodes = new ArrayDeque<PointQuadtree<Dot>>();
+		Deque<Integer> levels = new ArrayDeque<Integer>();
+		nodes.push(tree); levels.push(level);
+		while (!nodes.isEmpty()) {
+			PointQuadtree<Dot> n = nodes.pop();
+			int l = levels.pop();
+			drawNode(g, n, l);
+			if (n.getX2()-n.getX1() <= 1 && n.getY2()-n.getY1() <= 1) continue;
+			// children pushed last first, so drawn 1 to 4 as before
+			for (int q = 4; q >= 1; q--) {
+				if (n.hasChild(q)) {
+					nodes.push(n.getChild(q)); levels.push(l+1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Draws a single node: its dot, in its level's color, and the lines through it across its rectangle
+	 */
+	private void drawNode(Graphics g, PointQuadtree<Dot> n, int level) {
 		// Set the color for this level
 		g.setColor(rainbow[level % rainbow.length]);
 		// Draw this node's dot and lines through it
-		Dot dot = tree.getPoint();		// placing our current dot in a variable for easy access
+		Dot dot = n.getPoint();		// placing our current dot in a variable for easy access
 
 		// drawing the circular dots while accounting for its radius
 		g.fillOval((int) dot.getX()-dotRadius, (int) dot.getY()-dotRadius, 2*dotRadius, 2*dotRadius);
 
-		g.drawLine(tree.getX1(), (int) dot.getY(), tree.getX2(), (int) dot.getY());		// draws horizontal line
-		g.drawLine((int) dot.getX(), tree.getY1(), (int) dot.getX(), tree.getY2());		// draws vertical line
+		g.drawLine(n.getX1(), (int) dot.getY(), n.getX2(), (int) dot.getY());		// draws horizontal line
+		g.drawLine((int) dot.getX(), n.getY1(), (int) dot.getX(), n.getY2());		// draws vertical line
+	}
 
-		// Recurse with children
-		level += 1;		// increases level by 1 before drawing children
-		if (tree.hasChild(1)) drawTree(g, tree.getChild(1), level);
-		if (tree.hasChild(2)) drawTree(g, tree.getChild(2), level);
-		if (tree.hasChild(3)) drawTree(g, tree.getChild(3), level);
-		if (tree.hasChild(4)) drawTree(g, tree.getChild(4), level);
+	/**
+	 * Adds a just-inserted dot to the drawing, by finding its node (down through the rectangles holding it)
+	 * and drawing that alone; one at the same spot as another dot is already drawn, as that dot
+	 */
+	private void drawInserted(Graphics g, Dot dot) {
+		Deque<PointQuadtree<Dot>> nodes = new ArrayDeque<PointQuadtree<Dot>>();
+		Deque<Integer> levels = new ArrayDeque<Integer>();
+		nodes.push(tree); levels.push(0);
+		while (!nodes.isEmpty()) {
+			PointQuadtree<Dot> n = nodes.pop();
+			int l = levels.pop();
+			if (n.getPoint() == dot) {
+				drawNode(g, n, l);
+				return;
+			}
+			for (int q = 1; q <= 4; q++) {
+				PointQuadtree<Dot> c = n.getChild(q);
+				// (more than one only when the dot is on a boundary)
+				if (c != null && c.getX1() <= dot.getX() && dot.getX() <= c.getX2() && c.getY1() <= dot.getY() && dot.getY() <= c.getY2()) {
+					nodes.push(c); levels.push(l+1);
+				}
+			}
+		}
 	}
 
 	public static void main(String[] args) {
@@ -0,0 +1,191 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A uniform grid of square cells over a rectangle: for points of even density and queries of about one
+ * cell's size (e.g., collisions between blobs of the same size, with cells twice their radius), a query
+ * looks at only a few cells, with no tree to descend. The points are kept sorted by cell in flat arrays,
+ * which a counting sort rebuilds from scratch in two passes, cheaply enough to do every frame.
+ *
+ * Inserting just notes the point; the arrays are rebuilt at the next query. So unlike the trees,
+ * the first query after an insert changes the index, and mustn't run alongside other queries.
+ */
+public class GridIndex<E extends Point2D> implements SpatialIndex<E> {
+	private final double x1, y1, x2, y2;		// the region covered
+	private final double cellSize;				// width and height of a cell
+	private final int cols, rows;				// number of cells across and down
+
+	private final List<E> points = new ArrayList<E>();	// everything inserted (within the region)
+	private boolean dirty = false;				// whether points has changed since the arrays were built
+
+	private int[] cellStart;					// points in cell c are at [cellStart[c], cellStart[c+1]) of the arrays below
+	private double[] xs, ys;					// coordinates, sorted by cell (row by row)
+	private Object[] sorted;					// the points, in the same order
+
+	/**
+	 * Initializes an empty grid over the rectangle
+	 * @param cellSize	width and height of each cell
+	 */
+	public GridIndex(double x1, double y1, double x2, double y2, double cellSize) {
+		if (!(cellSize > 0)) throw new IllegalArgumentException("cell size must be positive, not "+cellSize);
+		this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+		this.cellSize = cellSize;
+		cols = Math.max(1, (int) Math.ceil((x2-x1) / cellSize));
+		rows = Math.max(1, (int) Math.ceil((y2-y1) / cellSize));
+		cellStart = new int[cols*rows + 1];
+		xs = new double[0]; ys = new double[0]; sorted = new Object[0];
+	}
+
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	public void insert(E p) {
+		double px = p.getX(), py = p.getY();
+		if (px < x1 || px > x2 || py < y1 || py > y2) return;	// outside, so nowhere to put it
+		points.add(p);
+		dirty = true;
+	}
+
+	/**
+	 * Replaces everything in the grid with the points (those within the region), and sorts them into cells
+	 */
+	public void rebuild(List<? extends E> newPoints) {
+		points.clear();
+		for (E p : newPoints) {
+			double px = p.getX(), py = p.getY();
+			if (x1 <= px && px <= x2 && y1 <= py && py <= y2) points.add(p);
+		}
+		sort();
+	}
+
+	/**
+	 * Sorts the points into cells, if anything has changed since they last were
+	 */
+	private void ensureSorted() {
+		if (dirty) sort();
+	}
+
+	/**
+	 * Sorts the points into cells, by counting how many go in each cell, working out where each cell
+	 * starts from that, and then placing each point
+	 */
+	private void sort() {
+		int n = points.size();
+		if (xs.length < n) {
+			xs = new double[n]; ys = new double[n]; sorted = new Object[n];
+		}
+		int[] cellOf = new int[n];
+		Arrays.fill(cellStart, 0);
+		for (int i = 0; i < n; i++) {
+			E p = points.get(i);
+			cellOf[i] = cell(col(p.getX()), row(p.getY()));
+			cellStart[cellOf[i]+1]++;
+		}
+		for (int c = 1; c < cellStart.length; c++) cellStart[c] += cellStart[c-1];
+		int[] next = cellStart.clone();
+		for (int i = 0; i < n; i++) {
+			E p = points.get(i);
+			int at = next[cellOf[i]]++;
+			xs[at] = p.getX(); ys[at] = p.getY();
+			sorted[at] = p;
+		}
+		for (int i = n; i < sorted.length && sorted[i] != null; i++) sorted[i] = null;	// let go of old points
+		dirty = false;
+	}
+
+	private int col(double x) {
+		return Math.min(cols-1, Math.max(0, (int) ((x-x1) / cellSize)));
+	}
+
+	private int row(double y) {
+		return Math.min(rows-1, Math.max(0, (int) ((y-y1) / cellSize)));
+	}
+
+	private int cell(int col, int row) {
+		return row*cols + col;
+	}
+
+	public int size() {
+		return points.size();
+	}
+
+	public List<E> allPoints() {
+		return new ArrayList<E>(points);
+	}
+
+	public List<E> findInCircle(double cx, double cy, double cr) {
+		List<E> circleList = new ArrayList<E>();
+		findInCircle(cx, cy, cr, circleList::add);
+		return circleList;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void findInCircle(double cx, double cy, double cr, Consumer<? super E> action) {
+		ensureSorted();
+		// the cells the circle's bounding box covers, skipping any the circle itself misses
+		int colLo = col(cx-cr), colHi = col(cx+cr), rowLo = row(cy-cr), rowHi = row(cy+cr);
+		for (int row = rowLo; row <= rowHi; row++) {
+			for (int col = colLo; col <= colHi; col++) {
+				double cellX = x1 + col*cellSize, cellY = y1 + row*cellSize;
+				if (!Geometry.circleIntersectsRectangle(cx, cy, cr, cellX, cellY, cellX+cellSize, cellY+cellSize)) continue;
+				int c = cell(col, row);
+				for (int i = cellStart[c]; i < cellStart[c+1]; i++) {
+					if (Geometry.pointInCircle(xs[i], ys[i], cx, cy, cr)) action.accept((E) sorted[i]);
+				}
+			}
+		}
+	}
+
+	public int countInCircle(double cx, double cy, double cr) {
+		ensureSorted();
+		int num = 0;
+		int colLo = col(cx-cr), colHi = col(cx+cr), rowLo = row(cy-cr), rowHi = row(cy+cr);
+		for (int row = rowLo; row <= rowHi; row++) {
+			for (int col = colLo; col <= colHi; col++) {
+				double cellX = x1 + col*cellSize, cellY = y1 + row*cellSize;
+				if (!Geometry.circleIntersectsRectangle(cx, cy, cr, cellX, cellY, cellX+cellSize, cellY+cellSize)) continue;
+				int c = cell(col, row);
+				for (int i = cellStart[c]; i < cellStart[c+1]; i++) {
+					if (Geometry.pointInCircle(xs[i], ys[i], cx, cy, cr)) num++;
+				}
+			}
+		}
+		return num;
+	}
+
+	/**
+	 * Finds every pair of points within the given distance of each other, each unordered pair exactly once
+	 * (as PointQuadtree.findAllPairsWithin does): each cell is paired with itself and with the cells after it
+	 * (to the right on its row, and on the rows below) that are close enough
+	 * @param radius	how close two points must be (inclusive)
+	 * @param action	called with the two points of each pair
+	 */
+	@SuppressWarnings("unchecked")
+	public void findAllPairsWithin(double radius, BiConsumer<? super E, ? super E> action) {
+		ensureSorted();
+		int reach = (int) Math.ceil(radius / cellSize);		// how many cells away a pair can be
+		double r2 = radius*radius;
+		for (int row = 0; row < rows; row++) {
+			for (int col = 0; col < cols; col++) {
+				int c = cell(col, row);
+				for (int dy = 0; dy <= reach && row+dy < rows; dy++) {
+					for (int dx = (dy == 0) ? 0 : -reach; dx <= reach; dx++) {
+						if (col+dx < 0 || col+dx >= cols) continue;
+						int d = cell(col+dx, row+dy);
+						for (int i = cellStart[c]; i < cellStart[c+1]; i++) {
+							// within the same cell, only the points after this one
+							for (int j = (d == c) ? i+1 : cellStart[d]; j < cellStart[d+1]; j++) {
+								double ddx = xs[i]-xs[j], ddy = ys[i]-ys[j];
+								if (ddx*ddx + ddy*ddy <= r2) action.accept((E) sorted[i], (E) sorted[j]);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+}
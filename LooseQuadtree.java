@@ -0,0 +1,385 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A loose quadtree, for objects that are circles of differing sizes rather than points: each object is
+ * kept as deep as its size allows, in the node whose region holds its center and which is at least twice
+ * as wide as its radius. So every object in a node's subtree lies within the node's loose bounds, its
+ * region grown by half its width on every side (twice as wide, or k = 2), and a query for overlapping
+ * objects skips any subtree whose loose bounds it misses, however big or small the objects are: unlike
+ * a tree of centers, which must be searched out to the biggest radius for every query.
+ *
+ * As in a BucketQuadtree, regions split at their midpoints once they hold more than a fixed number of
+ * objects, handing down those that fit a child; the rest (too big for any child) stay where they are.
+ * The root takes any object centered in its region, however big.
+ */
+public class LooseQuadtree<E extends Point2D> implements SpatialIndex<E> {
+	public static final int DEFAULT_CAPACITY = 8;	// objects per node before it splits, unless given
+	private static final int MAX_DEPTH = 32;		// nodes this deep just grow rather than split
+
+	private final ToDoubleFunction<? super E> radius;	// each object's radius
+	private final int capacity;						// most objects a leaf holds before splitting
+	private final Node<E> root;
+
+	/**
+	 * A region of the tree, holding the objects that fit it but none of its children (all of its objects,
+	 * while a leaf), and split into four children once it has held too many
+	 * (numbered as in PointQuadtree: 1 upper right, 2 upper left, 3 lower left, 4 lower right)
+	 */
+	private static class Node<E extends Point2D> {
+		final double x1, y1, x2, y2;		// the region, holding the centers
+		final double lx1, ly1, lx2, ly2;	// the loose bounds, holding the whole circles
+		final double maxRadius;				// the largest radius that fits
+		final int depth;					// 0 at the root
+		int size;							// number of objects in this subtree
+
+		Node<E> c1, c2, c3, c4;				// children, all null for a leaf
+		int count;							// number of objects in this node itself
+		double[] coords;					// x, y, radius of each object, interleaved
+		Object[] objects;					// the objects themselves (in the same order)
+
+		Node(double x1, double y1, double x2, double y2, int depth, int capacity) {
+			this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+			this.depth = depth;
+			if (depth == 0) {
+				// the root holds everything, whatever its size
+				maxRadius = Double.POSITIVE_INFINITY;
+				lx1 = ly1 = Double.NEGATIVE_INFINITY;
+				lx2 = ly2 = Double.POSITIVE_INFINITY;
+			}
+			else {
+				maxRadius = Math.min(x2-x1, y2-y1) / 2;
+				lx1 = x1-maxRadius; ly1 = y1-maxRadius; lx2 = x2+maxRadius; ly2 = y2+maxRadius;
+			}
+			coords = new double[3*capacity];
+			objects = new Object[capacity];
+		}
+
+		boolean isLeaf() {
+			return c1 == null;
+		}
+
+		/**
+		 * Returns the child whose region holds the position
+		 */
+		Node<E> childFor(double px, double py) {
+			double mx = c2.x2, my = c2.y2;
+			if (py < my) return (px < mx) ? c2 : c1;
+			return (px < mx) ? c3 : c4;
+		}
+
+		/**
+		 * Appends the object to this node's own, growing its arrays if needed
+		 */
+		void add(Object p, double px, double py, double pr) {
+			if (count == objects.length) {
+				coords = Arrays.copyOf(coords, 6*count);
+				objects = Arrays.copyOf(objects, 2*count);
+			}
+			coords[3*count] = px; coords[3*count+1] = py; coords[3*count+2] = pr;
+			objects[count++] = p;
+		}
+
+		/**
+		 * Returns whether the circle overlaps (or touches) the loose bounds
+		 */
+		boolean reaches(double cx, double cy, double cr) {
+			double dx = Math.max(0, Math.max(lx1 - cx, cx - lx2));
+			double dy = Math.max(0, Math.max(ly1 - cy, cy - ly2));
+			return dx*dx + dy*dy <= cr*cr;
+		}
+
+		/**
+		 * Returns whether the two nodes' loose bounds overlap (or touch)
+		 */
+		boolean reaches(Node<?> other) {
+			return lx1 <= other.lx2 && other.lx1 <= lx2 && ly1 <= other.ly2 && other.ly1 <= ly2;
+		}
+
+		/**
+		 * Returns whether all this node's objects are centered at the same spot (so splitting can't separate them)
+		 */
+		boolean allCoincident() {
+			for (int i = 1; i < count; i++) {
+				if (coords[3*i] != coords[0] || coords[3*i+1] != coords[1]) return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Initializes an empty tree over the rectangle, with the default capacity
+	 * @param radius	gives each object's radius (which must stay the same while it is in the tree)
+	 */
+	public LooseQuadtree(double x1, double y1, double x2, double y2, ToDoubleFunction<? super E> radius) {
+		this(x1, y1, x2, y2, radius, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Initializes an empty tree over the rectangle
+	 * @param radius	gives each object's radius (which must stay the same while it is in the tree)
+	 * @param capacity	how many objects a leaf holds before it splits
+	 */
+	public LooseQuadtree(double x1, double y1, double x2, double y2, ToDoubleFunction<? super E> radius, int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("leaf capacity must be positive, not "+capacity);
+		this.radius = radius;
+		this.capacity = capacity;
+		root = new Node<E>(x1, y1, x2, y2, 0, capacity);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Inserts the object into the tree, as deep as it fits (an object centered outside the rectangle is ignored)
+	 */
+	public void insert(E p) {
+		double px = p.getX(), py = p.getY(), pr = Math.max(0, radius.applyAsDouble(p));
+		if (!(root.x1 <= px && px <= root.x2 && root.y1 <= py && py <= root.y2)) return;	// outside (or NaN)
+
+		Node<E> n = root;
+		n.size++;
+		while (!n.isLeaf()) {
+			Node<E> c = n.childFor(px, py);
+			if (pr > c.maxRadius) break;			// too big to go further down
+			n = c;
+			n.size++;
+		}
+		n.add(p, px, py, pr);
+
+		// if everything went into the same child, that child needs splitting in turn
+		while (n.isLeaf() && n.count > capacity && n.depth < MAX_DEPTH && !n.allCoincident()) {
+			split(n);
+			Node<E> c = n.childFor(px, py);
+			if (pr > c.maxRadius) break;
+			n = c;
+		}
+	}
+
+	/**
+	 * Gives a leaf four children at its midpoint, handing down to them the objects that fit them
+	 */
+	private void split(Node<E> n) {
+		double mx = (n.x1+n.x2)/2, my = (n.y1+n.y2)/2;
+		n.c1 = new Node<E>(mx, n.y1, n.x2, my, n.depth+1, capacity);
+		n.c2 = new Node<E>(n.x1, n.y1, mx, my, n.depth+1, capacity);
+		n.c3 = new Node<E>(n.x1, my, mx, n.y2, n.depth+1, capacity);
+		n.c4 = new Node<E>(mx, my, n.x2, n.y2, n.depth+1, capacity);
+		int kept = 0;
+		for (int i = 0; i < n.count; i++) {
+			double px = n.coords[3*i], py = n.coords[3*i+1], pr = n.coords[3*i+2];
+			Node<E> c = n.childFor(px, py);
+			if (pr <= c.maxRadius) {
+				c.add(n.objects[i], px, py, pr);
+				c.size++;
+			}
+			else {
+				// stays here, moved up over those handed down
+				n.coords[3*kept] = px; n.coords[3*kept+1] = py; n.coords[3*kept+2] = pr;
+				n.objects[kept++] = n.objects[i];
+			}
+		}
+		Arrays.fill(n.objects, kept, n.count, null);
+		n.count = kept;
+	}
+
+	public int size() {
+		return root.size;
+	}
+
+	public List<E> allPoints() {
+		List<E> pointsList = new ArrayList<E>(root.size);
+		addToAllPoints(root, pointsList);
+		return pointsList;
+	}
+
+	/**
+	 * helper method for allPoints() that adds all the objects under the node to the list
+	 * (recursion is fine here, as the depth is bounded by MAX_DEPTH)
+	 */
+	@SuppressWarnings("unchecked")
+	private static <E extends Point2D> void addToAllPoints(Node<E> n, List<E> pointList) {
+		for (int i = 0; i < n.count; i++) pointList.add((E) n.objects[i]);
+		if (!n.isLeaf()) {
+			addToAllPoints(n.c1, pointList);
+			addToAllPoints(n.c2, pointList);
+			addToAllPoints(n.c3, pointList);
+			addToAllPoints(n.c4, pointList);
+		}
+	}
+
+	public List<E> findInCircle(double cx, double cy, double cr) {
+		List<E> circleList = new ArrayList<E>();
+		findInCircle(cx, cy, cr, circleList::add);
+		return circleList;
+	}
+
+	/**
+	 * Hands each object whose center is within the circle to the action, as for points
+	 * (see findOverlapping for the objects any part of which is)
+	 */
+	public void findInCircle(double cx, double cy, double cr, Consumer<? super E> action) {
+		findCenters(root, cx, cy, cr, action);
+	}
+
+	/**
+	 * helper method for findInCircle() that passes on the objects under the node centered in the circle
+	 * (pruning by regions, as those hold the centers)
+	 */
+	@SuppressWarnings("unchecked")
+	private static <E extends Point2D> void findCenters(Node<E> n, double cx, double cy, double cr, Consumer<? super E> action) {
+		if (!Geometry.circleIntersectsRectangle(cx, cy, cr, n.x1, n.y1, n.x2, n.y2)) return;
+		for (int i = 0; i < n.count; i++) {
+			if (Geometry.pointInCircle(n.coords[3*i], n.coords[3*i+1], cx, cy, cr)) action.accept((E) n.objects[i]);
+		}
+		if (!n.isLeaf()) {
+			findCenters(n.c1, cx, cy, cr, action);
+			findCenters(n.c2, cx, cy, cr, action);
+			findCenters(n.c3, cx, cy, cr, action);
+			findCenters(n.c4, cx, cy, cr, action);
+		}
+	}
+
+	public int countInCircle(double cx, double cy, double cr) {
+		return countCenters(root, cx, cy, cr);
+	}
+
+	/**
+	 * helper method for countInCircle() that counts the objects under the node centered in the circle
+	 */
+	private static <E extends Point2D> int countCenters(Node<E> n, double cx, double cy, double cr) {
+		if (!Geometry.circleIntersectsRectangle(cx, cy, cr, n.x1, n.y1, n.x2, n.y2)) return 0;
+		int num = 0;
+		for (int i = 0; i < n.count; i++) {
+			if (Geometry.pointInCircle(n.coords[3*i], n.coords[3*i+1], cx, cy, cr)) num++;
+		}
+		if (!n.isLeaf()) {
+			num += countCenters(n.c1, cx, cy, cr) + countCenters(n.c2, cx, cy, cr)
+					+ countCenters(n.c3, cx, cy, cr) + countCenters(n.c4, cx, cy, cr);
+		}
+		return num;
+	}
+
+	/**
+	 * Finds all objects overlapping (or touching) the circle
+	 * @param cx	circle center x
+	 * @param cy  	circle center y
+	 * @param cr  	circle radius
+	 */
+	public List<E> findOverlapping(double cx, double cy, double cr) {
+		List<E> overlapList = new ArrayList<E>();
+		findOverlapping(cx, cy, cr, overlapList::add);
+		return overlapList;
+	}
+
+	/**
+	 * Hands each object overlapping (or touching) the circle to the action, skipping any subtree whose
+	 * loose bounds the circle misses
+	 * @param action	called with each overlapping object
+	 */
+	public void findOverlapping(double cx, double cy, double cr, Consumer<? super E> action) {
+		findOverlapping(root, cx, cy, cr, action);
+	}
+
+	/**
+	 * helper method for findOverlapping() that passes on the objects under the node overlapping the circle
+	 * (recursion is fine here, as the depth is bounded by MAX_DEPTH)
+	 */
+	@SuppressWarnings("unchecked")
+	private static <E extends Point2D> void findOverlapping(Node<E> n, double cx, double cy, double cr, Consumer<? super E> action) {
+		if (!n.reaches(cx, cy, cr)) return;
+		double[] coords = n.coords;
+		for (int i = 0; i < n.count; i++) {
+			double dx = coords[3*i]-cx, dy = coords[3*i+1]-cy, reach = coords[3*i+2]+cr;
+			if (dx*dx + dy*dy <= reach*reach) action.accept((E) n.objects[i]);
+		}
+		if (!n.isLeaf()) {
+			findOverlapping(n.c1, cx, cy, cr, action);
+			findOverlapping(n.c2, cx, cy, cr, action);
+			findOverlapping(n.c3, cx, cy, cr, action);
+			findOverlapping(n.c4, cx, cy, cr, action);
+		}
+	}
+
+	/**
+	 * Finds every pair of objects that overlap (or touch), each unordered pair reported exactly once, in one
+	 * pass over the tree: within each node, and between each two subtrees whose loose bounds meet
+	 * @param action	called with the two objects of each pair
+	 */
+	public void findAllOverlappingPairs(BiConsumer<? super E, ? super E> action) {
+		pairsWithin(root, action);
+	}
+
+	/**
+	 * helper method for findAllOverlappingPairs(): the pairs within the node's subtree
+	 * (recursion is fine here, as the depth is bounded by MAX_DEPTH)
+	 */
+	private static <E extends Point2D> void pairsWithin(Node<E> n, BiConsumer<? super E, ? super E> action) {
+		for (int i = 0; i < n.count; i++) pairWith(n, i, n, i+1, action);
+		if (n.isLeaf()) return;
+		Node<E>[] children = children(n);
+		for (int a = 0; a < 4; a++) {
+			for (int i = 0; i < n.count; i++) pairWithSubtree(n, i, children[a], action);
+			pairsWithin(children[a], action);
+			for (int b = a+1; b < 4; b++) pairsBetween(children[a], children[b], action);
+		}
+	}
+
+	/**
+	 * helper method for findAllOverlappingPairs(): the pairs with one object in each of two separate subtrees
+	 */
+	private static <E extends Point2D> void pairsBetween(Node<E> a, Node<E> b, BiConsumer<? super E, ? super E> action) {
+		if (a.size == 0 || b.size == 0 || !a.reaches(b)) return;
+		// a's own objects with everything under b, then b's own with what is under a's children,
+		// then a's children with b's
+		for (int i = 0; i < a.count; i++) pairWithSubtree(a, i, b, action);
+		if (a.isLeaf()) return;
+		for (Node<E> ca : children(a)) {
+			for (int i = 0; i < b.count; i++) pairWithSubtree(b, i, ca, action);
+		}
+		if (b.isLeaf()) return;
+		for (Node<E> ca : children(a)) {
+			for (Node<E> cb : children(b)) pairsBetween(ca, cb, action);
+		}
+	}
+
+	/**
+	 * Returns a node's four children, in order
+	 */
+	@SuppressWarnings("unchecked")
+	private static <E extends Point2D> Node<E>[] children(Node<E> n) {
+		return (Node<E>[]) new Node<?>[] { n.c1, n.c2, n.c3, n.c4 };
+	}
+
+	/**
+	 * Pairs the object at index i of node a with each object under the node that it overlaps
+	 */
+	private static <E extends Point2D> void pairWithSubtree(Node<E> a, int i, Node<E> n, BiConsumer<? super E, ? super E> action) {
+		if (!n.reaches(a.coords[3*i], a.coords[3*i+1], a.coords[3*i+2])) return;
+		pairWith(a, i, n, 0, action);
+		if (!n.isLeaf()) {
+			pairWithSubtree(a, i, n.c1, action);
+			pairWithSubtree(a, i, n.c2, action);
+			pairWithSubtree(a, i, n.c3, action);
+			pairWithSubtree(a, i, n.c4, action);
+		}
+	}
+
+	/**
+	 * Pairs the object at index i of node a with each of node b's own objects from index from on that it overlaps
+	 */
+	@SuppressWarnings("unchecked")
+	private static <E extends Point2D> void pairWith(Node<E> a, int i, Node<E> b, int from, BiConsumer<? super E, ? super E> action) {
+		double px = a.coords[3*i], py = a.coords[3*i+1], pr = a.coords[3*i+2];
+		double[] coords = b.coords;
+		for (int j = from; j < b.count; j++) {
+			double dx = coords[3*j]-px, dy = coords[3*j+1]-py, reach = coords[3*j+2]+pr;
+			if (dx*dx + dy*dy <= reach*reach) action.accept((E) a.objects[i], (E) b.objects[j]);
+		}
+	}
+}
@@ -0,0 +1,228 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * A built PointQuadtree saved to a file, and queried straight from the file mapped into memory, with
+ * nothing read in up front: opening is close to instant however big the tree, and processes opening
+ * the same file share its pages through the operating system's cache. Points are known by an int id,
+ * given for each when the tree is written (e.g., its index in some list the caller keeps).
+ *
+ * The file is little-endian: a header (magic "QDT1", version, number of points, and the root's rectangle,
+ * as ints), then a record for each point in preorder (node, its duplicates, then children 1-4), each holding:
+ * x, y (doubles); id; the node's rectangle x1, y1, x2, y2; the number of records in its subtree; the
+ * record numbers of its four children, -1 for none; and how many duplicates follow it (ints, then 4 bytes
+ * of padding). A duplicate's record repeats its node's, with no children or duplicates of its own.
+ * As a subtree's records come one after another, queries can skip it in one step, and need no stack.
+ * Version 1 files (from before nodes held duplicates) had no duplicates count, in 56-byte records.
+ */
+public class MappedQuadtree {
+	private static final int MAGIC = 0x31544451;			// "QDT1" read as a little-endian int
+	private static final int VERSION = 2;
+	private static final int HEADER = 32;					// bytes before the first record
+	private static final int RECORD = 64;					// bytes per point
+	private static final int CHUNK_BITS = 24;				// records mapped 2^24 at a time (a buffer holds < 2GB)
+	private static final int CHUNK_RECORDS = 1 << CHUNK_BITS;
+
+	// where each field is within a record
+	private static final int X = 0, Y = 8, ID = 16, X1 = 20, Y1 = 24, X2 = 28, Y2 = 32, SUBTREE = 36;	// then the children, from 40
+	private static final int DUPLICATES = 56;
+
+	private final int count;						// number of records (= points)
+	private final int x1, y1, x2, y2;				// the root's rectangle
+	private final ByteBuffer[] chunks;				// the records, CHUNK_RECORDS per buffer
+
+	private MappedQuadtree(int count, int x1, int y1, int x2, int y2, ByteBuffer[] chunks) {
+		this.count = count;
+		this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+		this.chunks = chunks;
+	}
+
+	/**
+	 * Writes the tree to the file, replacing anything already there
+	 * @param tree	the tree to save
+	 * @param file	where to save it
+	 * @param ids	gives the id to store for each point
+	 */
+	public static <E extends Point2D> void write(PointQuadtree<E> tree, Path file, ToIntFunction<? super E> ids) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocate(RECORD * 4096).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(tree.size()).putInt(0);
+			buffer.putInt(tree.getX1()).putInt(tree.getY1()).putInt(tree.getX2()).putInt(tree.getY2());
+
+			// preorder, with a stack of nodes still to write; a node's children come right after it and its
+			// duplicates, each one after the whole subtree of the one before, so their record numbers follow from the sizes
+			Deque<PointQuadtree<E>> stack = new ArrayDeque<PointQuadtree<E>>();
+			stack.push(tree);
+			int record = 0;
+			while (!stack.isEmpty()) {
+				PointQuadtree<E> n = stack.pop();
+				List<E> duplicates = n.getDuplicates();
+				if (buffer.remaining() < RECORD) flush(channel, buffer);
+
+				putRecord(buffer, n, n.getPoint(), ids, n.size());
+				int child = record + 1 + duplicates.size();
+				for (int q = 1; q <= 4; q++) {
+					if (n.hasChild(q)) {
+						buffer.putInt(child);
+						child += n.getChild(q).size();
+					}
+					else buffer.putInt(-1);
+				}
+				buffer.putInt(duplicates.size()).putInt(0);
+				for (E d : duplicates) {
+					if (buffer.remaining() < RECORD) flush(channel, buffer);
+					putRecord(buffer, n, d, ids, 1);
+					buffer.putInt(-1).putInt(-1).putInt(-1).putInt(-1).putInt(0).putInt(0);
+				}
+				for (int q = 4; q >= 1; q--) if (n.hasChild(q)) stack.push(n.getChild(q));
+				record += 1 + duplicates.size();
+			}
+			flush(channel, buffer);
+		}
+	}
+
+	/**
+	 * Puts the first part of a point's record, up to its children: where it is, its id, and its node's rectangle
+	 */
+	private static <E extends Point2D> void putRecord(ByteBuffer buffer, PointQuadtree<E> n, E p, ToIntFunction<? super E> ids, int subtree) {
+		buffer.putDouble(p.getX()).putDouble(p.getY());
+		buffer.putInt(ids.applyAsInt(p));
+		buffer.putInt(n.getX1()).putInt(n.getY1()).putInt(n.getX2()).putInt(n.getY2());
+		buffer.putInt(subtree);
+	}
+
+	/**
+	 * Writes out what is in the buffer, leaving it empty
+	 */
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Maps a file written by write() into memory, to be queried from there
+	 * @throws IOException	if it can't be read, or isn't such a file
+	 */
+	public static MappedQuadtree open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() < HEADER) throw new IOException(file+" is too short to be a quadtree");
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt(0) != MAGIC) throw new IOException(file+" is not a quadtree");
+			if (header.getInt(4) != VERSION) throw new IOException(file+" is quadtree version "+header.getInt(4)+", not "+VERSION);
+			int count = header.getInt(8);
+			if (channel.size() != HEADER + (long) count * RECORD) throw new IOException(file+" is the wrong length for "+count+" points");
+
+			// the mappings stay valid after the channel is closed
+			ByteBuffer[] chunks = new ByteBuffer[(count + CHUNK_RECORDS - 1) >>> CHUNK_BITS];
+			for (int c = 0; c < chunks.length; c++) {
+				long records = Math.min(CHUNK_RECORDS, count - (long) c * CHUNK_RECORDS);
+				chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER + (long) c * CHUNK_RECORDS * RECORD,
+						records * RECORD).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			return new MappedQuadtree(count, header.getInt(16), header.getInt(20), header.getInt(24), header.getInt(28), chunks);
+		}
+	}
+
+	/**
+	 * Returns the number of points in the tree
+	 */
+	public int size() {
+		return count;
+	}
+
+	public int getX1() {
+		return x1;
+	}
+
+	public int getY1() {
+		return y1;
+	}
+
+	public int getX2() {
+		return x2;
+	}
+
+	public int getY2() {
+		return y2;
+	}
+
+	/**
+	 * Returns the buffer holding the record
+	 */
+	private ByteBuffer chunk(int record) {
+		return chunks[record >>> CHUNK_BITS];
+	}
+
+	/**
+	 * Returns where the record starts within its buffer
+	 */
+	private static int offset(int record) {
+		return (record & (CHUNK_RECORDS - 1)) * RECORD;
+	}
+
+	/**
+	 * Hands the id of every point in the tree to the action, in preorder
+	 */
+	public void allIds(IntConsumer action) {
+		for (int r = 0; r < count; r++) action.accept(chunk(r).getInt(offset(r) + ID));
+	}
+
+	/**
+	 * Returns the ids of every point in the tree, in preorder
+	 */
+	public int[] allIds() {
+		int[] ids = new int[count];
+		for (int r = 0; r < count; r++) ids[r] = chunk(r).getInt(offset(r) + ID);
+		return ids;
+	}
+
+	/**
+	 * Finds the ids of all points within the circle, in the same order as PointQuadtree.findInCircle
+	 * @param cx	circle center x
+	 * @param cy  	circle center y
+	 * @param cr  	circle radius
+	 */
+	public int[] findInCircle(double cx, double cy, double cr) {
+		IntStream.Builder ids = IntStream.builder();
+		findInCircle(cx, cy, cr, ids);
+		return ids.build().toArray();
+	}
+
+	/**
+	 * Hands the id of each point within the circle to the action, in the same order as PointQuadtree.findInCircle
+	 * @param cx		circle center x
+	 * @param cy  		circle center y
+	 * @param cr  		circle radius
+	 * @param action	called with the id of each point in the circle
+	 */
+	public void findInCircle(double cx, double cy, double cr, IntConsumer action) {
+		int r = 0;
+		while (r < count) {
+			ByteBuffer b = chunk(r);
+			int at = offset(r);
+			// if circle intersects rectangle, test the point (taking its duplicates along with it) and go on
+			// into the children (next in the file); otherwise skip the whole subtree
+			if (Geometry.circleIntersectsRectangle(cx, cy, cr, b.getInt(at+X1), b.getInt(at+Y1), b.getInt(at+X2), b.getInt(at+Y2))) {
+				int duplicates = b.getInt(at+DUPLICATES);
+				if (Geometry.pointInCircle(b.getDouble(at+X), b.getDouble(at+Y), cx, cy, cr)) {
+					action.accept(b.getInt(at+ID));
+					for (int d = r+1; d <= r+duplicates; d++) action.accept(chunk(d).getInt(offset(d) + ID));
+				}
+				r += 1 + duplicates;
+			}
+			else r += b.getInt(at+SUBTREE);
+		}
+	}
+}
@@ -0,0 +1,234 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * A linear quadtree: no nodes at all, just the points sorted by their Morton (Z-order) code in flat arrays.
+ * A point's code interleaves the bits of its x and y, each scaled to 16 bits over the rectangle, so every
+ * quadtree cell (the rectangle halved some number of times) is one run of codes, and so one stretch of
+ * the arrays, found by binary search. A query walks down those cells, dropping any that the circle
+ * misses or that hold no points, and scans the points of what is left; sorting is a radix sort over
+ * the codes, read and written in order.
+ *
+ * Inserting just notes the point; the arrays are re-sorted at the next query (as in GridIndex). So the
+ * first query after an insert changes the index, and mustn't run alongside other queries.
+ */
+public class MortonQuadtree<E extends Point2D> implements SpatialIndex<E> {
+	private static final int BITS = 16;						// bits per coordinate in a code
+	private static final int SCAN = 16;						// cells with no more points than this are just scanned
+	private static final int PARALLEL_THRESHOLD = 65536;	// codes for at least this many points are computed in parallel
+
+	private final double x1, y1, x2, y2;		// the region covered
+	private final double scaleX, scaleY;		// cells per unit, along each axis, at the finest level
+
+	private final List<E> points = new ArrayList<E>();	// everything inserted (within the region)
+	private boolean dirty = false;				// whether points has changed since the arrays were built
+
+	private int[] codes = new int[0];			// Morton code of each point, ascending (as unsigned ints)
+	private double[] xs = new double[0], ys = new double[0];	// coordinates, in the same order
+	private Object[] sorted = new Object[0];	// the points, in the same order
+
+	/**
+	 * Initializes an empty tree over the rectangle
+	 */
+	public MortonQuadtree(double x1, double y1, double x2, double y2) {
+		if (!(x2 > x1 && y2 > y1)) throw new IllegalArgumentException("empty rectangle "+x1+","+y1+" to "+x2+","+y2);
+		this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+		scaleX = (1 << BITS) / (x2-x1);
+		scaleY = (1 << BITS) / (y2-y1);
+	}
+
+	public void insert(E p) {
+		double px = p.getX(), py = p.getY();
+		if (!(x1 <= px && px <= x2 && y1 <= py && py <= y2)) return;	// outside (or NaN), so nowhere to put it
+		points.add(p);
+		dirty = true;
+	}
+
+	/**
+	 * Replaces everything in the tree with the points (those within the region), and sorts them
+	 */
+	public void rebuild(List<? extends E> newPoints) {
+		points.clear();
+		for (E p : newPoints) {
+			double px = p.getX(), py = p.getY();
+			if (x1 <= px && px <= x2 && y1 <= py && py <= y2) points.add(p);
+		}
+		sort();
+	}
+
+	private void ensureSorted() {
+		if (dirty) sort();
+	}
+
+	/**
+	 * Computes each point's code, then sorts by code a byte at a time, least significant first
+	 * (skipping bytes that are the same for every point)
+	 */
+	private void sort() {
+		int n = points.size();
+		int[] order = new int[n];
+		IntStream indexes = IntStream.range(0, n);
+		if (n >= PARALLEL_THRESHOLD) indexes = indexes.parallel();
+		int[] keys = indexes.map(i -> code(points.get(i).getX(), points.get(i).getY())).toArray();
+		for (int i = 0; i < n; i++) order[i] = i;
+
+		int[] keysTo = new int[n], orderTo = new int[n];
+		int[] count = new int[257];
+		for (int shift = 0; shift < 32; shift += 8) {
+			Arrays.fill(count, 0);
+			for (int i = 0; i < n; i++) count[((keys[i] >>> shift) & 0xff) + 1]++;
+			if (n == 0 || count[((keys[0] >>> shift) & 0xff) + 1] == n) continue;	// all the same here
+			for (int b = 1; b < 257; b++) count[b] += count[b-1];
+			for (int i = 0; i < n; i++) {
+				int at = count[(keys[i] >>> shift) & 0xff]++;
+				keysTo[at] = keys[i];
+				orderTo[at] = order[i];
+			}
+			int[] t = keys; keys = keysTo; keysTo = t;
+			t = order; order = orderTo; orderTo = t;
+		}
+
+		codes = keys;
+		xs = new double[n]; ys = new double[n]; sorted = new Object[n];
+		for (int i = 0; i < n; i++) {
+			E p = points.get(order[i]);
+			xs[i] = p.getX(); ys[i] = p.getY();
+			sorted[i] = p;
+		}
+		dirty = false;
+	}
+
+	/**
+	 * Returns the Morton code of the position: its cell column and row at the finest level, bits interleaved
+	 * (x in the even bits, y in the odd)
+	 */
+	private int code(double px, double py) {
+		int qx = Math.min((1 << BITS) - 1, (int) ((px-x1) * scaleX));
+		int qy = Math.min((1 << BITS) - 1, (int) ((py-y1) * scaleY));
+		return spread(qx) | (spread(qy) << 1);
+	}
+
+	/**
+	 * Spreads the low 16 bits of v out to the even bits
+	 */
+	private static int spread(int v) {
+		v = (v | (v << 8)) & 0x00ff00ff;
+		v = (v | (v << 4)) & 0x0f0f0f0f;
+		v = (v | (v << 2)) & 0x33333333;
+		v = (v | (v << 1)) & 0x55555555;
+		return v;
+	}
+
+	/**
+	 * Returns the first index in [from, to) whose code is at least the given one (or to, if none)
+	 */
+	private int lowerBound(int from, int to, long code) {
+		while (from < to) {
+			int mid = (from + to) >>> 1;
+			if ((codes[mid] & 0xffffffffL) < code) from = mid+1;
+			else to = mid;
+		}
+		return from;
+	}
+
+	public int size() {
+		return points.size();
+	}
+
+	/**
+	 * Returns all the points, in Morton order
+	 */
+	@SuppressWarnings("unchecked")
+	public List<E> allPoints() {
+		ensureSorted();
+		List<E> all = new ArrayList<E>(sorted.length);
+		for (Object p : sorted) all.add((E) p);
+		return all;
+	}
+
+	public List<E> findInCircle(double cx, double cy, double cr) {
+		List<E> circleList = new ArrayList<E>();
+		findInCircle(cx, cy, cr, circleList::add);
+		return circleList;
+	}
+
+	/**
+	 * Finds all points within the circle, handing them to the action in Morton order
+	 */
+	public void findInCircle(double cx, double cy, double cr, Consumer<? super E> action) {
+		ensureSorted();
+		findPoints(0, codes.length, 0, BITS, 0, 0, cx, cy, cr, action);
+	}
+
+	/**
+	 * helper method for findInCircle() that passes on the points of a cell that are in the circle
+	 * (recursion is fine here, as the depth is bounded by BITS)
+	 * @param from, to		the stretch of the arrays holding the cell's points
+	 * @param base			the cell's first code
+	 * @param level			the cell is 2^level finest cells across
+	 * @param qx, qy		the cell's first finest column and row
+	 */
+	@SuppressWarnings("unchecked")
+	private void findPoints(int from, int to, long base, int level, int qx, int qy,
+			double cx, double cy, double cr, Consumer<? super E> action) {
+		if (from == to) return;
+		// the cell's rectangle, widened a hair so that rounding in the scaling can't leave out a point on its edge
+		int side = 1 << level;
+		double padX = 1e-9 * (x2-x1), padY = 1e-9 * (y2-y1);
+		if (!Geometry.circleIntersectsRectangle(cx, cy, cr, x1 + qx/scaleX - padX, y1 + qy/scaleY - padY,
+				x1 + (qx+side)/scaleX + padX, y1 + (qy+side)/scaleY + padY)) return;
+
+		if (to - from <= SCAN || level == 0) {
+			for (int i = from; i < to; i++) {
+				if (Geometry.pointInCircle(xs[i], ys[i], cx, cy, cr)) action.accept((E) sorted[i]);
+			}
+			return;
+		}
+		// the quadrants in Z order: upper left, upper right, lower left, lower right, each a quarter of the codes
+		long quarter = 1L << (2*(level-1));
+		int half = side >> 1;
+		int start = from;
+		for (int k = 0; k < 4; k++) {
+			int end = (k == 3) ? to : lowerBound(start, to, base + (k+1)*quarter);
+			findPoints(start, end, base + k*quarter, level-1, qx + (k & 1)*half, qy + (k >> 1)*half, cx, cy, cr, action);
+			start = end;
+		}
+	}
+
+	public int countInCircle(double cx, double cy, double cr) {
+		ensureSorted();
+		return countPoints(0, codes.length, 0, BITS, 0, 0, cx, cy, cr);
+	}
+
+	/**
+	 * helper method for countInCircle() that counts the points of a cell that are in the circle,
+	 * visiting the cells as findPoints does
+	 */
+	private int countPoints(int from, int to, long base, int level, int qx, int qy, double cx, double cy, double cr) {
+		if (from == to) return 0;
+		int side = 1 << level;
+		double padX = 1e-9 * (x2-x1), padY = 1e-9 * (y2-y1);
+		if (!Geometry.circleIntersectsRectangle(cx, cy, cr, x1 + qx/scaleX - padX, y1 + qy/scaleY - padY,
+				x1 + (qx+side)/scaleX + padX, y1 + (qy+side)/scaleY + padY)) return 0;
+
+		int num = 0;
+		if (to - from <= SCAN || level == 0) {
+			for (int i = from; i < to; i++) {
+				if (Geometry.pointInCircle(xs[i], ys[i], cx, cy, cr)) num++;
+			}
+			return num;
+		}
+		long quarter = 1L << (2*(level-1));
+		int half = side >> 1;
+		int start = from;
+		for (int k = 0; k < 4; k++) {
+			int end = (k == 3) ? to : lowerBound(start, to, base + (k+1)*quarter);
+			num += countPoints(start, end, base + k*quarter, level-1, qx + (k & 1)*half, qy + (k >> 1)*half, cx, cy, cr);
+			start = end;
+		}
+		return num;
+	}
+}
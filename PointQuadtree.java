@@ -4,23 +4,60 @@ date: 05.02.2021
 purpose: altered scaffold for PS2.
  */
 
+import java.awt.Shape;
+import java.awt.geom.Path2D;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A point quadtree: stores an element at a 2D position, 
  * with children at the subdivided quadrants
  * 
+ * Points at exactly the same position as a node's point are kept in that node, as its duplicates,
+ * rather than each going a level further down, so however many there are they cost no depth.
+ * 
+ * Queries (findInCircle and the others, size, allPoints) only read the tree, so any number of threads
+ * may query it at once, provided none is changing it meanwhile (insert, remove, update) and it was
+ * handed to them safely (e.g., built before the threads were started, or passed through a concurrent
+ * collection or a volatile field). The one exception is Geometry's call counters, which are plain
+ * static fields and so only approximate when queries run concurrently.
+ * 
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Spring 2015
  * @author CBK, Spring 2016, explicit rectangle
  * @author CBK, Fall 2016, generic with Point2D interface
  * 
  */
-public class PointQuadtree<E extends Point2D> {
+public class PointQuadtree<E extends Point2D> implements SpatialIndex<E>, Iterable<E> {
+	private static final int PARALLEL_BUILD_THRESHOLD = 8192;	// subtrees at least this big are built on the fork-join pool
+	private static final double ALPHA = 0.75;					// when rebalancing, the largest share of a subtree a child may hold
+
 	private E point;							// the point anchoring this node
+	private List<E> duplicates;					// other points at exactly the same position, in the order they came (null if none)
 	private int x1, y1;							// upper-left corner of the region
 	private int x2, y2;							// lower-right corner of the region
 	private PointQuadtree<E> c1, c2, c3, c4;	// children
+	private PointQuadtree<E> parent;			// the node this is a child of (null at the root)
+	private int size = 1;						// number of points in this subtree (duplicates included), kept up to date by insert and remove
+	private int height = 0;						// levels of nodes below this one (0 for a leaf), kept up to date likewise
+	private int sx, sy;							// where this node splits into quadrants: its point, when it was placed
+	private boolean loose = false;				// whether update leaves moved points in place while they stay in their rectangle
+	private boolean rebalancing = false;		// whether insert rebuilds a subtree that has grown lopsided
+	private QuadtreeMetrics metrics;			// where to record what is done through this node (null for nowhere)
 
 	/**
 	 * Initializes a leaf quadtree, holding the point in the rectangle
@@ -28,6 +65,7 @@ public class PointQuadtree<E extends Point2D> {
 	public PointQuadtree(E point, int x1, int y1, int x2, int y2) {
 		this.point = point;
 		this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+		this.sx = (int) point.getX(); this.sy = (int) point.getY();
 	}
 
 	// Getters
@@ -36,6 +74,14 @@ public class PointQuadtree<E extends Point2D> {
 		return point;
 	}
 
+	/**
+	 * Returns the other points at exactly the same position as this node's point, which the node holds
+	 * along with it rather than each in a node of its own (so that many of them don't make a chain)
+	 */
+	public List<E> getDuplicates() {
+		return (duplicates == null) ? Collections.<E>emptyList() : Collections.unmodifiableList(duplicates);
+	}
+
 	public int getX1() {
 		return x1;
 	}
@@ -76,57 +122,772 @@ public class PointQuadtree<E extends Point2D> {
 	 * Inserts the point into the tree
 	 */
 	public void insert(E p2) {
-		// x, y coordinates of the point to insert
-		double px = p2.getX();
-		double py = p2.getY();
+		// walking down (rather than recursing) so that a deep tree can't overflow the stack
+		PointQuadtree<E> node = this;
+		int depth = 0;
+		while (true) {
+			// which quadrant of the current point the point to insert falls in
+			int quadrant = node.quadrantOf(p2.getX(), p2.getY());
+			if (quadrant == 0) return;							// outside this rectangle, so nowhere to put it
+																// (only possible at the top, as each child's rectangle
+																// is the quadrant the point was found in)
+			node.size++;										// the point will be in this subtree
+			if (node.coincides(p2.getX(), p2.getY())) {			// at the very same spot: kept with that point
+				if (node.duplicates == null) node.duplicates = new ArrayList<E>(2);
+				node.duplicates.add(p2);
+				countInAncestors();
+				if (metrics != null) metrics.recordDepth(depth);
+				return;
+			}
+			if (!node.hasChild(quadrant)) {						// if no child there, insert new tree
+				PointQuadtree<E> leaf = node.setChild(quadrant, p2);
+				countInAncestors();
+				leaf.parent.refreshHeights();
+				if (metrics != null) metrics.recordDepth(depth+1);
+				if (rebalancing && depth+1 > maxBalancedDepth(size)) rebalance(leaf);
+				if (metrics != null) metrics.recordHeight(height);
+				return;
+			}
+			node = node.getChild(quadrant);						// otherwise, insert in child
+			depth++;
+		}
+	}
 
-		// x, y coordinates of the current point
-		int x = (int) point.getX();
-		int y = (int) point.getY();
+	/**
+	 * Returns whether the position is exactly that of this node's point
+	 */
+	private boolean coincides(double px, double py) {
+		return px == point.getX() && py == point.getY();
+	}
 
-		if (x <= px && px <= x2 && y1 <= py && py <= y) {				// if point in 1st quadrant
-			if (hasChild(1)) c1.insert(p2);						// and has child, then inset in child
-			else c1 = new PointQuadtree<E>(p2, x, y1, x2, y);			// if not, insert new tree
+	/**
+	 * Returns how many points this node holds: its own, and any duplicates
+	 */
+	private int multiplicity() {
+		return (duplicates == null) ? 1 : 1 + duplicates.size();
+	}
 
-		} else if (x1 <= px && px <= x && y1 <= py && py <= y) {		// if point in 2nd quadrant
-			if (hasChild(2)) c2.insert(p2);
-			else c2 = new PointQuadtree<E>(p2, x1, y1, x, y);
+	/**
+	 * Hands this node's point, and then any duplicates, to the action
+	 */
+	private void acceptPoints(Consumer<? super E> action) {
+		action.accept(point);
+		if (duplicates != null) {
+			for (E d : duplicates) action.accept(d);
+		}
+	}
 
-		} else if (x1 <= px && px <= x && y <= py && py <= y2) {		// if point in 3rd quadrant
-			if (hasChild(3)) c3.insert(p2);
-			else c3 = new PointQuadtree<E>(p2, x1, y, x, y2);
+	/**
+	 * Counts one more point in each of this node's ancestors, for an insert into a subtree rather than at the root
+	 */
+	private void countInAncestors() {
+		for (PointQuadtree<E> a = parent; a != null; a = a.parent) a.size++;
+	}
 
-		} else if (x <= px && px <= x2 && y <= py && py <= y2) {		// if point in 4th quadrant
-			if (hasChild(4)) c4.insert(p2);
-			else c4 = new PointQuadtree<E>(p2, x, y, x2, y2);
+	/**
+	 * Works out this node's height again from its children's, and so on up the tree until one doesn't change
+	 */
+	private void refreshHeights() {
+		for (PointQuadtree<E> a = this; a != null; a = a.parent) {
+			int h = 0;
+			for (PointQuadtree<E> c = a.childAfter(0); c != null; c = a.childAfter(c.quadrantInParent())) h = Math.max(h, c.height+1);
+			if (h == a.height && a != this) break;
+			a.height = h;
 		}
 	}
-	
+
+	/**
+	 * Returns how many levels of nodes there are below this one (0 for a leaf): the depth of the deepest
+	 * point in its subtree, as the tree is now
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Has what is done through this node (normally the root) recorded in the metrics: inserts and their
+	 * depths, rebalancing rebuilds, the tree's height after each change, and findInCircle queries (including
+	 * those made by findPoints and the batch versions). Other queries (countInCircle, anyInCircle, kNearest,
+	 * findInRect, findInShape, findAlongSegment, findAllPairsWithin and the streams) are not recorded.
+	 * @param metrics	where to record, or null to stop recording
+	 */
+	public void setMetrics(QuadtreeMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public QuadtreeMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Makes update leave a moved point in its node for as long as it stays within the node's rectangle,
+	 * even if the node has children (whose rectangles stay as they were, split where the point was placed);
+	 * otherwise only leaves are left in place. Applies to updates made through this node.
+	 */
+	public void setLoose(boolean loose) {
+		this.loose = loose;
+	}
+
+	public boolean isLoose() {
+		return loose;
+	}
+
 	/**
-	 * Finds the number of points in the quadtree (including its descendants)
+	 * Makes insert keep the tree's depth logarithmic whatever order points come in (scapegoat style): when a
+	 * point lands deeper than log base 1/ALPHA of the tree's size, the lowest subtree above it that has a child
+	 * holding more than ALPHA of its points is rebuilt around medians (as build does). Each rebuild costs time
+	 * in proportion to its subtree, but is paid for by the inserts that unbalanced it, so inserts stay
+	 * logarithmic on average; the metrics, if any, count rebuilds and the points they moved. Points all
+	 * within one unit cell can't be split apart however they're built, so such a subtree is left as is.
+	 * Applies to inserts (and updates) made through this node.
+	 */
+	public void setRebalancing(boolean rebalancing) {
+		this.rebalancing = rebalancing;
+	}
+
+	public boolean isRebalancing() {
+		return rebalancing;
+	}
+
+	/**
+	 * Returns how deep a point may be placed in a tree of the given size before it counts as unbalanced
+	 */
+	private static int maxBalancedDepth(int size) {
+		return (int) (Math.log(size) / Math.log(1/ALPHA));
+	}
+
+	/**
+	 * Finds the scapegoat for a leaf placed too deep, the lowest ancestor with a child holding more than
+	 * ALPHA of its points (there must be one on the path, else the leaf couldn't be so deep), and rebuilds it
+	 * unless doing so couldn't make it any shallower
+	 */
+	private void rebalance(PointQuadtree<E> leaf) {
+		for (PointQuadtree<E> n = leaf; n != this; n = n.parent) {
+			if (n.size > ALPHA * n.parent.size) {
+				if (!n.parent.withinOneCell()) rebuild(n.parent);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns whether all the points in this node's subtree are within the same unit cell as its own,
+	 * which no split (being at int coordinates) can divide
+	 */
+	private boolean withinOneCell() {
+		int cx = (int) point.getX(), cy = (int) point.getY();
+		for (PointQuadtree<E> n = next(this, true); n != null; n = next(n, true)) {
+			if ((int) n.point.getX() != cx || (int) n.point.getY() != cy) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces the node's subtree with one built around medians from the same points (duplicates included)
+	 */
+	private void rebuild(PointQuadtree<E> node) {
+		List<E> all = new ArrayList<E>(node.size);
+		for (PointQuadtree<E> n = node; n != null; n = node.next(n, true)) {
+			all.add(n.point);
+			if (n.duplicates != null) all.addAll(n.duplicates);
+		}
+		replace(node, build(all, node.x1, node.y1, node.x2, node.y2));
+		if (metrics != null) metrics.recordRebuild(all.size());
+	}
+
+	/**
+	 * Removes the point from the tree; if its node has children, their points are rebuilt into a new subtree
+	 * in the node's place
+	 * @param p2	the point to remove, at the position it was inserted at (or last updated to)
+	 * @return		whether the point was found (and so removed)
+	 * @throws IllegalStateException	if it is the only point in the tree, as a quadtree can't be empty
+	 */
+	public boolean remove(E p2) {
+		PointQuadtree<E> node = locate(p2, p2.getX(), p2.getY());
+		if (node == null) return false;
+		if (node.duplicates != null) node.dropDuplicate(p2);
+		else detach(node);
+		return true;
+	}
+
+	/**
+	 * Brings the tree up to date with the point having moved from (oldX, oldY) to where it is now.
+	 * A point still within its node's rectangle stays put if the node is a leaf (or the tree is loose);
+	 * otherwise it is removed and inserted afresh.
+	 * @param p2	the point that moved
+	 * @param oldX	x coordinate it had when inserted (or last updated)
+	 * @param oldY	y coordinate it had when inserted (or last updated)
+	 * @return		true if the point is in the tree where it now is; false if it wasn't found, or it has moved
+	 * 				outside the tree's rectangle and so is no longer in it (except for the tree's only point,
+	 * 				which can't be removed and so is left where it was)
+	 */
+	public boolean update(E p2, double oldX, double oldY) {
+		PointQuadtree<E> node = locate(p2, oldX, oldY);
+		if (node == null) return false;
+
+		double px = p2.getX(), py = p2.getY();
+		if (node.duplicates != null) {
+			// one of several at the same spot: unless still there, it leaves the others behind and goes in afresh
+			if (px == oldX && py == oldY) return true;
+			node.dropDuplicate(p2);
+			if (quadrantOf(px, py) == 0) return false;				// outside this rectangle
+			insert(p2);
+			return true;
+		}
+		if (node.x1 <= px && px <= node.x2 && node.y1 <= py && py <= node.y2) {
+			if (!node.hasChildren()) {
+				// nothing hangs off a leaf's split, so it can just move along with its point
+				node.sx = (int) px; node.sy = (int) py;
+				return true;
+			}
+			if (loose) return true;
+		}
+
+		if (node.size == 1 && node.parent == null) return false;	// the only point, now outside
+		detach(node);
+		if (quadrantOf(px, py) == 0) return false;					// outside this rectangle
+		insert(p2);
+		return true;
+	}
+
+	/**
+	 * Returns whether this node has any children
+	 */
+	private boolean hasChildren() {
+		return c1 != null || c2 != null || c3 != null || c4 != null;
+	}
+
+	/**
+	 * Finds the node holding the point, searching only the rectangles that contain the position it was placed at
+	 * (usually a single path, but more where the position is on a boundary)
+	 * @return		the node, or null if the point isn't there
+	 */
+	private PointQuadtree<E> locate(E p2, double px, double py) {
+		PointQuadtree<E> n = this;
+		while (n != null) {
+			if (n.point == p2 || n.holdsDuplicate(p2)) return n;
+			n = next(n, n.x1 <= px && px <= n.x2 && n.y1 <= py && py <= n.y2);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns whether the point (the very object) is one of this node's duplicates
+	 */
+	private boolean holdsDuplicate(E p2) {
+		if (duplicates == null) return false;
+		for (E d : duplicates) if (d == p2) return true;
+		return false;
+	}
+
+	/**
+	 * Takes one of the points at this node's position out of the tree; if it is the node's own point,
+	 * the first duplicate takes its place (at the same spot, so the split and children stay as they are)
+	 */
+	private void dropDuplicate(E p2) {
+		if (point == p2) point = duplicates.remove(0);
+		else {
+			for (int i = 0; i < duplicates.size(); i++) {
+				if (duplicates.get(i) == p2) {
+					duplicates.remove(i);
+					break;
+				}
+			}
+		}
+		if (duplicates.isEmpty()) duplicates = null;
+		for (PointQuadtree<E> a = this; a != null; a = a.parent) a.size--;
+	}
+
+	/**
+	 * Takes the node's point out of the tree: a leaf is simply unlinked, while a node with children is
+	 * replaced by a subtree built from their points (in place, if the node has no parent)
+	 */
+	private void detach(PointQuadtree<E> node) {
+		if (node.size == 1 && node.parent == null) throw new IllegalStateException("can't remove the only point in a quadtree");
+		for (PointQuadtree<E> a = node.parent; a != null; a = a.parent) a.size--;
+
+		PointQuadtree<E> rebuilt = null;
+		if (node.hasChildren()) {
+			List<E> rest = new ArrayList<E>(node.size-1);
+			for (PointQuadtree<E> n = node.next(node, true); n != null; n = node.next(n, true)) {
+				rest.add(n.point);
+				if (n.duplicates != null) rest.addAll(n.duplicates);
+			}
+			rebuilt = build(rest, node.x1, node.y1, node.x2, node.y2);
+		}
+		replace(node, rebuilt);
+		if (metrics != null) metrics.recordHeight(height);
+	}
+
+	/**
+	 * Puts the subtree in the node's place (null to just unlink it), covering the same rectangle
+	 */
+	private void replace(PointQuadtree<E> node, PointQuadtree<E> rebuilt) {
+		if (node.parent != null) {
+			node.parent.adopt(node.quadrantInParent(), rebuilt);
+			node.parent.refreshHeights();
+		}
+		else {
+			// the top of the tree stays the same object, taking over the rebuilt subtree's contents
+			node.point = rebuilt.point;
+			node.duplicates = rebuilt.duplicates;
+			node.sx = rebuilt.sx; node.sy = rebuilt.sy;
+			node.size = rebuilt.size;
+			node.height = rebuilt.height;
+			node.c1 = node.c2 = node.c3 = node.c4 = null;
+			for (int q = 1; q <= 4; q++) node.adopt(q, rebuilt.getChild(q));
+		}
+	}
+
+	/**
+	 * Returns the quadrant, 1-4, of this node's split that the position falls in, or 0 if outside the rectangle
+	 * @param px	x coordinate of the position
+	 * @param py	y coordinate of the position
+	 */
+	private int quadrantOf(double px, double py) {
+		// x, y coordinates where the current node splits
+		int x = sx;
+		int y = sy;
+
+		if (x <= px && px <= x2 && y1 <= py && py <= y) return 1;		// 1st quadrant
+		if (x1 <= px && px <= x && y1 <= py && py <= y) return 2;		// 2nd quadrant
+		if (x1 <= px && px <= x && y <= py && py <= y2) return 3;		// 3rd quadrant
+		if (x <= px && px <= x2 && y <= py && py <= y2) return 4;		// 4th quadrant
+		return 0;
+	}
+
+	/**
+	 * Puts a new leaf holding the point at the given quadrant, 1-4, covering that quadrant's rectangle
+	 * @return		the new child
+	 */
+	private PointQuadtree<E> setChild(int quadrant, E p2) {
+		// x, y coordinates where the current node splits
+		int x = sx;
+		int y = sy;
+
+		PointQuadtree<E> child;
+		if (quadrant==1) child = new PointQuadtree<E>(p2, x, y1, x2, y);
+		else if (quadrant==2) child = new PointQuadtree<E>(p2, x1, y1, x, y);
+		else if (quadrant==3) child = new PointQuadtree<E>(p2, x1, y, x, y2);
+		else child = new PointQuadtree<E>(p2, x, y, x2, y2);
+		adopt(quadrant, child);
+		return child;
+	}
+
+	/**
+	 * Builds a quadtree holding all the given points in the rectangle, anchoring each node at the median
+	 * of the points in its region (alternating between x and y by level) so that depth stays logarithmic
+	 * whatever the order of the list, as long as the points are spread over distinct unit cells (those
+	 * sharing one can't be split apart, and chain as deep as there are of them); large subtrees have
+	 * their quadrants built in parallel
+	 * @param points	the points to hold (the list itself is not modified)
+	 * @return			the root of the new tree, or null if there are no points
+	 */
+	public static <E extends Point2D> PointQuadtree<E> build(List<E> points, int x1, int y1, int x2, int y2) {
+		return build(points, x1, y1, x2, y2, null);
+	}
+
+	/**
+	 * Builds a quadtree as above, recording the build's time and the depth of each point in the metrics,
+	 * which the new tree then keeps recording in (see setMetrics)
+	 * @param points	the points to hold (the list itself is not modified)
+	 * @param metrics	where to record, or null for nowhere
+	 * @return			the root of the new tree, or null if there are no points
+	 */
+	public static <E extends Point2D> PointQuadtree<E> build(List<E> points, int x1, int y1, int x2, int y2, QuadtreeMetrics metrics) {
+		if (points.isEmpty()) return null;
+		long start = System.nanoTime();
+
+		@SuppressWarnings("unchecked")
+		E[] pts = (E[]) points.toArray(new Point2D[0]);
+		@SuppressWarnings("unchecked")
+		E[] scratch = (E[]) new Point2D[pts.length];		// shared buffer for partitioning into quadrants
+
+		BuildTask<E> task = new BuildTask<E>(pts, scratch, 0, pts.length, x1, y1, x2, y2, 0, metrics);
+		PointQuadtree<E> tree = (pts.length < PARALLEL_BUILD_THRESHOLD) ? task.compute() : ForkJoinPool.commonPool().invoke(task);
+		if (metrics != null) {
+			tree.metrics = metrics;
+			metrics.recordBuild(System.nanoTime() - start);
+			metrics.recordHeight(tree.height);
+		}
+		return tree;
+	}
+
+	/**
+	 * Builds the subtree for pts[lo, hi) in a rectangle; each task owns its range of pts and scratch,
+	 * so the four quadrant tasks never touch each other's elements
+	 */
+	@SuppressWarnings("serial")		// never serialized, just run on the fork-join pool
+	private static class BuildTask<E extends Point2D> extends RecursiveTask<PointQuadtree<E>> {
+		private final E[] pts, scratch;
+		private final int lo, hi;
+		private final int x1, y1, x2, y2;
+		private final int depth;
+		private final QuadtreeMetrics metrics;		// where to record each node's depth, if anywhere
+		private PointQuadtree<E> into;				// the node this builds a quadrant of (null for the top)
+		private int quadrant;
+
+		BuildTask(E[] pts, E[] scratch, int lo, int hi, int x1, int y1, int x2, int y2, int depth, QuadtreeMetrics metrics) {
+			this.pts = pts; this.scratch = scratch;
+			this.lo = lo; this.hi = hi;
+			this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+			this.depth = depth;
+			this.metrics = metrics;
+		}
+
+		@Override
+		protected PointQuadtree<E> compute() {
+			// work through the quadrants left to build with a stack rather than by recursing, as points too
+			// close together for the int splits to tell apart chain one below another, as deep as there are
+			// of them; big quadrants are forked instead, but only off nodes that do split their points
+			@SuppressWarnings("unchecked")
+			BuildTask<E>[] tasks = (BuildTask<E>[]) new BuildTask<?>[5];
+			List<PointQuadtree<E>> built = new ArrayList<PointQuadtree<E>>();		// parents before their children
+			Deque<BuildTask<E>> work = new ArrayDeque<BuildTask<E>>();
+			List<BuildTask<E>> forked = new ArrayList<BuildTask<E>>();
+			work.push(this);
+			while (!work.isEmpty()) {
+				BuildTask<E> task = work.pop();
+				PointQuadtree<E> tree = task.place(tasks);
+				if (task.into != null) task.into.adopt(task.quadrant, tree);
+				built.add(tree);
+				int split = 0;
+				for (int q = 1; q <= 4; q++) if (tasks[q] != null) split++;
+				for (int q = 4; q >= 1; q--) {			// pushed from the last, so built from the first
+					if (tasks[q] == null) continue;
+					tasks[q].into = tree; tasks[q].quadrant = q;
+					if (split > 1 && tasks[q].hi - tasks[q].lo >= PARALLEL_BUILD_THRESHOLD) {
+						tasks[q].fork();
+						forked.add(tasks[q]);
+					}
+					else work.push(tasks[q]);
+					tasks[q] = null;
+				}
+			}
+			for (BuildTask<E> task : forked) task.into.adopt(task.quadrant, task.join());
+
+			// heights from the bottom up, children (and forked subtrees) being done before their parents
+			for (int i = built.size()-1; i >= 0; i--) {
+				PointQuadtree<E> tree = built.get(i);
+				for (PointQuadtree<E> c = tree.childAfter(0); c != null; c = tree.childAfter(c.quadrantInParent())) {
+					tree.height = Math.max(tree.height, c.height+1);
+				}
+			}
+			return built.get(0);
+		}
+
+		/**
+		 * Makes the node for pts[lo, hi), anchored at their median, and groups the rest of them by quadrant,
+		 * filling in tasks[1-4] with those quadrants that have any to build
+		 */
+		private PointQuadtree<E> place(BuildTask<E>[] tasks) {
+			// anchor at the median, by x on even levels and by y on odd ones
+			int mid = (lo + hi) >>> 1;
+			select(pts, lo, hi, mid, depth % 2 == 0);
+			PointQuadtree<E> tree = new PointQuadtree<E>(pts[mid], x1, y1, x2, y2);
+			if (metrics != null) metrics.recordDepth(depth);
+
+			// move the anchor to the front, then group the rest by quadrant into pts[start[q-1], start[q]),
+			// followed by any outside the rectangle (quadrant 0), which are dropped, and then any at the
+			// anchor's very spot, which become its duplicates
+			E anchor = pts[mid]; pts[mid] = pts[lo]; pts[lo] = anchor;
+			int[] start = new int[7];
+			for (int i = lo+1; i < hi; i++) start[tree.buildSlot(pts[i])+1]++;
+			start[0] = lo+1;
+			for (int o = 1; o < 7; o++) start[o] += start[o-1];
+			int[] next = start.clone();
+			for (int i = lo+1; i < hi; i++) scratch[next[tree.buildSlot(pts[i])]++] = pts[i];
+			System.arraycopy(scratch, lo+1, pts, lo+1, hi-lo-1);
+			if (start[6] > start[5]) {
+				tree.duplicates = new ArrayList<E>(Arrays.asList(pts).subList(start[5], start[6]));
+				if (metrics != null) for (int i = start[5]; i < start[6]; i++) metrics.recordDepth(depth);
+			}
+
+			for (int q = 1; q <= 4; q++) {
+				if (start[q] > start[q-1]) tasks[q] = tree.quadrantTask(q, pts, scratch, start[q-1], start[q], depth+1, metrics);
+			}
+			tree.size = start[4] - lo + start[6] - start[5];		// everything but those dropped for being outside
+			return tree;
+		}
+	}
+
+	/**
+	 * Where a point is grouped while building this node: quadrants 1-4 first, then those outside,
+	 * then those at this node's point's very spot
+	 */
+	private int buildSlot(E p) {
+		double px = p.getX(), py = p.getY();
+		if (coincides(px, py)) return 5;
+		int quadrant = quadrantOf(px, py);
+		return quadrant == 0 ? 4 : quadrant-1;
+	}
+
+	/**
+	 * Makes the task to build the given quadrant, 1-4, of this node from pts[lo, hi)
+	 */
+	private BuildTask<E> quadrantTask(int quadrant, E[] pts, E[] scratch, int lo, int hi, int depth, QuadtreeMetrics metrics) {
+		// x, y coordinates where the current node splits
+		int x = sx;
+		int y = sy;
+
+		if (quadrant==1) return new BuildTask<E>(pts, scratch, lo, hi, x, y1, x2, y, depth, metrics);
+		if (quadrant==2) return new BuildTask<E>(pts, scratch, lo, hi, x1, y1, x, y, depth, metrics);
+		if (quadrant==3) return new BuildTask<E>(pts, scratch, lo, hi, x1, y, x, y2, depth, metrics);
+		return new BuildTask<E>(pts, scratch, lo, hi, x, y, x2, y2, depth, metrics);
+	}
+
+	/**
+	 * Attaches an already built subtree as the child at the given quadrant, 1-4 (or, with null, removes the child)
+	 */
+	private void adopt(int quadrant, PointQuadtree<E> child) {
+		if (child != null) child.parent = this;
+		if (quadrant==1) c1 = child;
+		else if (quadrant==2) c2 = child;
+		else if (quadrant==3) c3 = child;
+		else c4 = child;
+	}
+
+	/**
+	 * Rearranges pts[lo, hi) so that pts[k] holds the element that would be there if the range were
+	 * sorted by x (or by y), with nothing greater before it and nothing smaller after it (quickselect)
+	 */
+	private static <E extends Point2D> void select(E[] pts, int lo, int hi, int k, boolean byX) {
+		hi--;
+		while (hi > lo) {
+			// partition around the middle element's coordinate
+			double pivot = byX ? pts[(lo+hi)>>>1].getX() : pts[(lo+hi)>>>1].getY();
+			int i = lo, j = hi;
+			while (i <= j) {
+				while ((byX ? pts[i].getX() : pts[i].getY()) < pivot) i++;
+				while ((byX ? pts[j].getX() : pts[j].getY()) > pivot) j--;
+				if (i <= j) {
+					E tmp = pts[i]; pts[i] = pts[j]; pts[j] = tmp;
+					i++; j--;
+				}
+			}
+			// keep going only in the side that holds k
+			if (k <= j) hi = j;
+			else if (k >= i) lo = i;
+			else return;
+		}
+	}
+
+	/**
+	 * Finds the number of points in the quadtree (including its descendants), in constant time
 	 */
 	public int size() {
-		int num = 1;
+		return size;
+	}
 
-		// increasing the num recursively
-		if (hasChild(1)) num += c1.size();
-		if (hasChild(2)) num += c2.size();
-		if (hasChild(3)) num += c3.size();
-		if (hasChild(4)) num += c4.size();
+	/**
+	 * Returns the first child in a quadrant after the given one (0 for the very first), or null if there is none
+	 */
+	private PointQuadtree<E> childAfter(int quadrant) {
+		if (quadrant < 1 && c1 != null) return c1;
+		if (quadrant < 2 && c2 != null) return c2;
+		if (quadrant < 3 && c3 != null) return c3;
+		if (quadrant < 4 && c4 != null) return c4;
+		return null;
+	}
 
-		return num;
+	/**
+	 * Returns which quadrant, 1-4, of its parent this node is
+	 */
+	private int quadrantInParent() {
+		if (parent.c1 == this) return 1;
+		if (parent.c2 == this) return 2;
+		if (parent.c3 == this) return 3;
+		return 4;
 	}
-	
+
+	/**
+	 * Steps a preorder walk (node, then its children 1-4) of the subtree rooted at this node;
+	 * climbing back up through the parent links means the walk needs no recursion and no stack,
+	 * however deep the tree is
+	 * @param n			the node the walk is at
+	 * @param descend	whether to go into n's children (false skips n's whole subtree)
+	 * @return			the next node of the walk, or null when it is done
+	 */
+	private PointQuadtree<E> next(PointQuadtree<E> n, boolean descend) {
+		if (descend) {
+			PointQuadtree<E> child = n.childAfter(0);
+			if (child != null) return child;
+		}
+		// otherwise, the next sibling of the nearest node (on the way back up to this one) that has one
+		while (n != this) {
+			PointQuadtree<E> sibling = n.parent.childAfter(n.quadrantInParent());
+			if (sibling != null) return sibling;
+			n = n.parent;
+		}
+		return null;
+	}
+
 	/**
 	 * Builds a list of all the points in the quadtree (including its descendants)
 	 */
 	public List<E> allPoints() {
 		// TODO: YOUR CODE HERE -- efficiency matters!
-		ArrayList<E> pointsList = new ArrayList<E>();	// creating list to store all points
+		ArrayList<E> pointsList = new ArrayList<E>(size);	// creating list to store all points, already big enough
 		addToAllPoints(pointsList);				// using a helper function to add points to list efficiently
 		return pointsList;
 	}
 
+	/**
+	 * Iterates over all the points lazily, in no particular order, without building a list of them
+	 */
+	public Iterator<E> iterator() {
+		return Spliterators.iterator(spliterator());
+	}
+
+	/**
+	 * Returns a spliterator over all the points, which splits by quadrant: one holding several untouched
+	 * subtrees hands half of them over; one holding a single subtree keeps its point and hands over its
+	 * children. Its size is exact, from the subtree counts.
+	 */
+	public Spliterator<E> spliterator() {
+		return new QuadtreeSpliterator<E>(this, Double.NaN, 0, 0);
+	}
+
+	/**
+	 * Returns a lazy stream of all the points
+	 */
+	public Stream<E> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	/**
+	 * Returns a lazy stream of all the points, split by quadrant among threads
+	 */
+	public Stream<E> parallelStream() {
+		return StreamSupport.stream(spliterator(), true);
+	}
+
+	/**
+	 * Returns a lazy stream of the points within the circle (as findInCircle finds them, but only as
+	 * far as the stream is consumed); it may be made parallel, splitting by quadrant as stream() does
+	 * @param cx	circle center x
+	 * @param cy  	circle center y
+	 * @param cr  	circle radius
+	 */
+	public Stream<E> streamInCircle(double cx, double cy, double cr) {
+		return StreamSupport.stream(new QuadtreeSpliterator<E>(this, cx, cy, cr), false);
+	}
+
+	/**
+	 * Walks some subtrees (and perhaps a lone point) of a tree, all of them or just what is within a circle
+	 */
+	private static class QuadtreeSpliterator<E extends Point2D> implements Spliterator<E> {
+		private final double cx, cy, cr;				// the circle, with cx NaN for everything
+		private final Deque<PointQuadtree<E>> pending;	// whole subtrees not yet started
+		private PointQuadtree<E> loneNode;				// a node whose children were handed over, its points still to do
+		private List<E> group;							// duplicates of the point just handed on, still to do (or null)
+		private int groupAt;							// how far through group
+		private PointQuadtree<E> walkRoot, walkAt;		// the subtree being walked, and where the walk is up to
+		private long remaining;							// points left (only an upper bound, within a circle)
+
+		QuadtreeSpliterator(PointQuadtree<E> root, double cx, double cy, double cr) {
+			this(new ArrayDeque<PointQuadtree<E>>(), cx, cy, cr);
+			pending.add(root);
+			remaining = root.size;
+		}
+
+		private QuadtreeSpliterator(Deque<PointQuadtree<E>> pending, double cx, double cy, double cr) {
+			this.pending = pending;
+			this.cx = cx; this.cy = cy; this.cr = cr;
+		}
+
+		private boolean everything() {
+			return Double.isNaN(cx);
+		}
+
+		private boolean reaches(PointQuadtree<E> n) {
+			return everything() || Geometry.circleIntersectsRectangle(cx, cy, cr, n.x1, n.y1, n.x2, n.y2);
+		}
+
+		private boolean contains(E p) {
+			return everything() || Geometry.pointInCircle(p.getX(), p.getY(), cx, cy, cr);
+		}
+
+		/**
+		 * Hands on the node's point if it counts, lining up its duplicates (at the same spot, so counting too) to follow
+		 */
+		private boolean acceptNode(PointQuadtree<E> n, Consumer<? super E> action) {
+			remaining -= n.multiplicity();
+			if (!contains(n.point)) return false;
+			action.accept(n.point);
+			group = n.duplicates;
+			groupAt = 0;
+			return true;
+		}
+
+		public boolean tryAdvance(Consumer<? super E> action) {
+			while (true) {
+				if (group != null) {
+					if (groupAt < group.size()) {
+						action.accept(group.get(groupAt++));
+						return true;
+					}
+					group = null;
+				}
+				else if (loneNode != null) {
+					PointQuadtree<E> n = loneNode;
+					loneNode = null;
+					if (acceptNode(n, action)) return true;
+				}
+				else if (walkAt != null) {
+					PointQuadtree<E> n = walkAt;
+					boolean reaches = reaches(n);
+					walkAt = walkRoot.next(n, reaches);
+					if (reaches) {
+						if (acceptNode(n, action)) return true;
+					}
+					else remaining -= n.size;
+				}
+				else if (!pending.isEmpty()) {
+					walkRoot = walkAt = pending.poll();
+				}
+				else return false;
+			}
+		}
+
+		public Spliterator<E> trySplit() {
+			// a single untouched subtree: keep its point, and put its children up for splitting instead
+			if (pending.size() == 1 && walkAt == null && loneNode == null && group == null) {
+				PointQuadtree<E> n = pending.poll();
+				if (!reaches(n)) {
+					remaining -= n.size;
+					return null;
+				}
+				loneNode = n;
+				for (PointQuadtree<E> child = n.childAfter(0); child != null; child = n.childAfter(child.quadrantInParent())) {
+					pending.add(child);
+				}
+			}
+			if (pending.isEmpty() || (pending.size() == 1 && walkAt == null && loneNode == null && group == null)) return null;
+
+			// hand over half the untouched subtrees (or the only one, when there's other work to keep)
+			Deque<PointQuadtree<E>> given = new ArrayDeque<PointQuadtree<E>>();
+			long givenSize = 0;
+			for (int i = Math.max(1, pending.size()/2); i > 0; i--) {
+				PointQuadtree<E> n = pending.poll();
+				given.add(n);
+				givenSize += n.size;
+			}
+			QuadtreeSpliterator<E> split = new QuadtreeSpliterator<E>(given, cx, cy, cr);
+			split.remaining = givenSize;
+			remaining -= givenSize;
+			return split;
+		}
+
+		public long estimateSize() {
+			return remaining;
+		}
+
+		public int characteristics() {
+			return everything() ? (NONNULL | SIZED | SUBSIZED) : NONNULL;
+		}
+	}
+
 	/**
 	 * Uses the quadtree to find all points within the circle
 	 * @param cx	circle center x
@@ -141,6 +902,513 @@ public class PointQuadtree<E extends Point2D> {
 		return circleList;
 	}
 
+	/**
+	 * Uses the quadtree to find all points within the circle, handing each to the action rather than
+	 * collecting them, so that (with an action that doesn't itself allocate) the query creates no garbage
+	 * @param cx		circle center x
+	 * @param cy  		circle center y
+	 * @param cr  		circle radius
+	 * @param action	called with each point in the circle, in the same order findInCircle lists them
+	 */
+	public void findInCircle(double cx, double cy, double cr, Consumer<? super E> action) {
+		QuadtreeMetrics m = metrics;
+		long start = (m != null) ? System.nanoTime() : 0;
+		int visits = 0, pruned = 0, hits = 0;
+
+		PointQuadtree<E> n = this;
+		while (n != null) {
+			// if circle intersects rectangle
+			boolean intersects = Geometry.circleIntersectsRectangle(cx, cy, cr, n.x1, n.y1, n.x2, n.y2);
+			visits++;
+
+			// if a point is found within circle, pass it on
+			if (intersects && Geometry.pointInCircle(n.point.getX(), n.point.getY(), cx, cy, cr)) {
+				n.acceptPoints(action);			// with any duplicates, there too
+				hits += n.multiplicity();
+			}
+			else if (!intersects) pruned++;
+
+			// continue with all children if the circle reaches this rectangle, else skip past them
+			n = next(n, intersects);
+		}
+		if (m != null) m.recordQuery(visits, pruned, visits - pruned, hits, System.nanoTime() - start);
+	}
+
+	/**
+	 * Runs a batch of circle queries in parallel, on the common fork-join pool; each query's list is filled
+	 * by the thread running it, with nothing shared between them. The tree must not change until this returns.
+	 * @param cxs	circle center x, for each query
+	 * @param cys	circle center y, for each query
+	 * @param crs	circle radius, for each query
+	 * @return		for each query, what findInCircle would return for it
+	 */
+	public List<List<E>> findInCircles(double[] cxs, double[] cys, double[] crs) {
+		checkBatch(cxs, cys, crs);
+		@SuppressWarnings("unchecked")
+		List<E>[] results = (List<E>[]) new List<?>[cxs.length];
+		IntStream.range(0, cxs.length).parallel().forEach(i -> results[i] = findInCircle(cxs[i], cys[i], crs[i]));
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Counts the points in each of a batch of circles, in parallel as with findInCircles
+	 * @return		for each query, what countInCircle would return for it
+	 */
+	public int[] countInCircles(double[] cxs, double[] cys, double[] crs) {
+		checkBatch(cxs, cys, crs);
+		int[] counts = new int[cxs.length];
+		IntStream.range(0, cxs.length).parallel().forEach(i -> counts[i] = countInCircle(cxs[i], cys[i], crs[i]));
+		return counts;
+	}
+
+	/**
+	 * Makes sure a batch of queries has as many of each coordinate as the others
+	 */
+	private static void checkBatch(double[] cxs, double[] cys, double[] crs) {
+		if (cys.length != cxs.length || crs.length != cxs.length) {
+			throw new IllegalArgumentException("batch has "+cxs.length+" x, "+cys.length+" y and "+crs.length+" radius values");
+		}
+	}
+
+	/**
+	 * Returns whether there is any point within the circle, stopping at the first one found
+	 * @param cx	circle center x
+	 * @param cy  	circle center y
+	 * @param cr  	circle radius
+	 */
+	public boolean anyInCircle(double cx, double cy, double cr) {
+		PointQuadtree<E> n = this;
+		while (n != null) {
+			// a rectangle entirely inside the circle has at least its own node's point there
+			if (rectangleInCircle(cx, cy, cr, n.x1, n.y1, n.x2, n.y2)) return true;
+
+			boolean intersects = Geometry.circleIntersectsRectangle(cx, cy, cr, n.x1, n.y1, n.x2, n.y2);
+			if (intersects && Geometry.pointInCircle(n.point.getX(), n.point.getY(), cx, cy, cr)) return true;
+			n = next(n, intersects);
+		}
+		return false;
+	}
+
+	/**
+	 * Finds every pair of points within the given distance of each other, in one pass over the tree rather
+	 * than a query per point: each unordered pair is reported exactly once, and no point is paired with itself
+	 * (points at the same spot are still paired). Works down pairs of subtrees, skipping any two whose
+	 * rectangles are too far apart.
+	 * @param radius	how close two points must be (inclusive)
+	 * @param action	called with the two points of each pair
+	 */
+	public void findAllPairsWithin(double radius, BiConsumer<? super E, ? super E> action) {
+		// work still to do, two nodes at a time: the same node twice for the pairs within its subtree,
+		// or two different ones for the pairs between their (separate) subtrees
+		Deque<PointQuadtree<E>> work = new ArrayDeque<PointQuadtree<E>>();
+		work.push(this); work.push(this);
+		while (!work.isEmpty()) {
+			PointQuadtree<E> a = work.pop(), b = work.pop();
+			if (a == b) {
+				// within: a's points with each other and with everything below them, then within each child
+				// and between each two of them
+				if (a.duplicates != null && radius >= 0) {
+					for (int i = 0; i < a.duplicates.size(); i++) {
+						action.accept(a.point, a.duplicates.get(i));
+						for (int j = i+1; j < a.duplicates.size(); j++) action.accept(a.duplicates.get(i), a.duplicates.get(j));
+					}
+				}
+				for (PointQuadtree<E> c = a.childAfter(0); c != null; c = a.childAfter(c.quadrantInParent())) {
+					c.pairWith(a, radius, action);
+					work.push(c); work.push(c);
+					for (PointQuadtree<E> d = a.childAfter(c.quadrantInParent()); d != null; d = a.childAfter(d.quadrantInParent())) {
+						work.push(d); work.push(c);
+					}
+				}
+			}
+			else if (rectangleDistanceSq(a, b) <= radius*radius) {
+				// between: the bigger subtree's points with all of the other, then each of its children with the other
+				if (a.size < b.size) { PointQuadtree<E> t = a; a = b; b = t; }
+				b.pairWith(a, radius, action);
+				for (PointQuadtree<E> c = a.childAfter(0); c != null; c = a.childAfter(c.quadrantInParent())) {
+					work.push(b); work.push(c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Pairs the node's points (its own and any duplicates) with each point of this subtree within the radius
+	 * of them (found as in findInCircle)
+	 */
+	private void pairWith(PointQuadtree<E> a, double radius, BiConsumer<? super E, ? super E> action) {
+		double px = a.point.getX(), py = a.point.getY();
+		PointQuadtree<E> n = this;
+		while (n != null) {
+			boolean intersects = Geometry.circleIntersectsRectangle(px, py, radius, n.x1, n.y1, n.x2, n.y2);
+			if (intersects && Geometry.pointInCircle(n.point.getX(), n.point.getY(), px, py, radius)) {
+				pairGroups(a, n, action);
+			}
+			n = next(n, intersects);
+		}
+	}
+
+	/**
+	 * Pairs each of one node's points with each of another's
+	 */
+	private static <E extends Point2D> void pairGroups(PointQuadtree<E> a, PointQuadtree<E> b, BiConsumer<? super E, ? super E> action) {
+		action.accept(a.point, b.point);
+		if (a.duplicates == null && b.duplicates == null) return;
+		if (b.duplicates != null) for (E q : b.duplicates) action.accept(a.point, q);
+		if (a.duplicates != null) {
+			for (E p : a.duplicates) {
+				action.accept(p, b.point);
+				if (b.duplicates != null) for (E q : b.duplicates) action.accept(p, q);
+			}
+		}
+	}
+
+	/**
+	 * Returns the square of the distance between the closest points of two nodes' rectangles (0 if they touch)
+	 */
+	private static double rectangleDistanceSq(PointQuadtree<?> a, PointQuadtree<?> b) {
+		double dx = Math.max(0, Math.max(a.x1 - b.x2, b.x1 - a.x2));
+		double dy = Math.max(0, Math.max(a.y1 - b.y2, b.y1 - a.y2));
+		return dx*dx + dy*dy;
+	}
+
+	/**
+	 * Finds all points within the rectangle (including its edges)
+	 * @param rx1	rectangle left x
+	 * @param ry1	rectangle top y
+	 * @param rx2	rectangle right x
+	 * @param ry2	rectangle bottom y
+	 */
+	public List<E> findInRect(double rx1, double ry1, double rx2, double ry2) {
+		List<E> rectList = new ArrayList<E>();
+		findInRect(rx1, ry1, rx2, ry2, rectList::add);
+		return rectList;
+	}
+
+	/**
+	 * Hands each point within the rectangle (including its edges) to the action; a node whose whole
+	 * rectangle is inside the query's has its subtree handed over without testing any of its points
+	 * @param rx1		rectangle left x
+	 * @param ry1		rectangle top y
+	 * @param rx2		rectangle right x
+	 * @param ry2		rectangle bottom y
+	 * @param action	called with each point in the rectangle
+	 */
+	public void findInRect(double rx1, double ry1, double rx2, double ry2, Consumer<? super E> action) {
+		PointQuadtree<E> n = this;
+		while (n != null) {
+			if (rx1 <= n.x1 && n.x2 <= rx2 && ry1 <= n.y1 && n.y2 <= ry2) {
+				// everything in the subtree is in the query rectangle
+				n.forEachPoint(action);
+				n = next(n, false);
+			}
+			else {
+				boolean intersects = rx1 <= n.x2 && n.x1 <= rx2 && ry1 <= n.y2 && n.y1 <= ry2;
+				if (intersects) {
+					double px = n.point.getX(), py = n.point.getY();
+					if (rx1 <= px && px <= rx2 && ry1 <= py && py <= ry2) n.acceptPoints(action);
+				}
+				n = next(n, intersects);
+			}
+		}
+	}
+
+	/**
+	 * Finds all points within the polygon (e.g., a view frustum, seen from above)
+	 * @param xs	x coordinates of the polygon's corners, in order
+	 * @param ys	y coordinates of the polygon's corners, in order
+	 */
+	public List<E> findInPolygon(double[] xs, double[] ys) {
+		if (xs.length != ys.length) throw new IllegalArgumentException("polygon has "+xs.length+" x but "+ys.length+" y values");
+		Path2D.Double polygon = new Path2D.Double();
+		if (xs.length > 0) {
+			polygon.moveTo(xs[0], ys[0]);
+			for (int i = 1; i < xs.length; i++) polygon.lineTo(xs[i], ys[i]);
+			polygon.closePath();
+		}
+		return findInShape(polygon);
+	}
+
+	/**
+	 * Finds all points within the shape
+	 * @param shape		what to look in; whether a point on its boundary counts is up to the shape's contains()
+	 */
+	public List<E> findInShape(Shape shape) {
+		List<E> shapeList = new ArrayList<E>();
+		findInShape(shape, shapeList::add);
+		return shapeList;
+	}
+
+	/**
+	 * Hands each point within the shape to the action; a node whose whole rectangle is inside
+	 * the shape has its subtree handed over without testing any of its points
+	 * @param shape		what to look in; whether a point on its boundary counts is up to the shape's contains()
+	 * @param action	called with each point in the shape
+	 */
+	public void findInShape(Shape shape, Consumer<? super E> action) {
+		PointQuadtree<E> n = this;
+		while (n != null) {
+			if (shape.contains(n.x1, n.y1, n.x2-n.x1, n.y2-n.y1)) {
+				// everything in the subtree is in the shape
+				n.forEachPoint(action);
+				n = next(n, false);
+			}
+			else {
+				// (widened by half a unit, as shapes never intersect a rectangle with no area, which a region on a line is)
+				boolean intersects = shape.intersects(n.x1-0.5, n.y1-0.5, n.x2-n.x1+1, n.y2-n.y1+1);
+				if (intersects && shape.contains(n.point.getX(), n.point.getY())) n.acceptPoints(action);
+				n = next(n, intersects);
+			}
+		}
+	}
+
+	/**
+	 * Hands every point of this subtree to the action, without any tests
+	 */
+	private void forEachPoint(Consumer<? super E> action) {
+		for (PointQuadtree<E> n = this; n != null; n = next(n, true)) n.acceptPoints(action);
+	}
+
+	/**
+	 * Finds all points within the given distance of the segment (i.e., in the capsule it sweeps out):
+	 * what a circle of that radius, moving from one end to the other, would touch along the way
+	 * @param ax	segment start x
+	 * @param ay	segment start y
+	 * @param bx	segment end x
+	 * @param by	segment end y
+	 * @param r		how close to the segment a point must be (inclusive)
+	 */
+	public List<E> findAlongSegment(double ax, double ay, double bx, double by, double r) {
+		List<E> segmentList = new ArrayList<E>();
+		findAlongSegment(ax, ay, bx, by, r, segmentList::add);
+		return segmentList;
+	}
+
+	/**
+	 * Hands each point within the given distance of the segment to the action, skipping any subtree
+	 * whose rectangle is farther than that from the segment
+	 * @param action	called with each point near the segment
+	 */
+	public void findAlongSegment(double ax, double ay, double bx, double by, double r, Consumer<? super E> action) {
+		double r2 = r*r;
+		PointQuadtree<E> n = this;
+		while (n != null) {
+			boolean near = segmentRectangleDistanceSq(ax, ay, bx, by, n.x1, n.y1, n.x2, n.y2) <= r2;
+			if (near && segmentDistanceSq(ax, ay, bx, by, n.point.getX(), n.point.getY()) <= r2) n.acceptPoints(action);
+			n = next(n, near);
+		}
+	}
+
+	/**
+	 * Finds the point that a circle moving along the segment would hit first (continuous collision
+	 * detection, so a fast circle can't pass through a point between one position and the next).
+	 * The segment is cut short at each hit found, so that nothing beyond it is looked at.
+	 * @param ax		where the circle's center starts, x
+	 * @param ay		where the circle's center starts, y
+	 * @param bx		where the circle's center ends, x
+	 * @param by		where the circle's center ends, y
+	 * @param r			the circle's radius
+	 * @param exclude	a point to ignore (e.g., the one doing the moving), or null
+	 * @return			the point hit first (at the time timeOfImpact gives), or null if none is hit
+	 */
+	public E firstAlongSegment(double ax, double ay, double bx, double by, double r, E exclude) {
+		double r2 = r*r;
+		E first = null;
+		double firstT = 1;									// how far along the segment the first hit so far is
+		double ex = bx, ey = by;							// where the segment now ends
+		PointQuadtree<E> n = this;
+		while (n != null) {
+			boolean near = segmentRectangleDistanceSq(ax, ay, ex, ey, n.x1, n.y1, n.x2, n.y2) <= r2;
+			if (near) {
+				double t = timeOfImpact(ax, ay, bx, by, n.point.getX(), n.point.getY(), r);
+				if (t >= 0 && (t < firstT || first == null)) {
+					// its point, or else the first duplicate not excluded (all at the same spot, so hit at once)
+					E hit = (n.point != exclude) ? n.point : null;
+					if (hit == null && n.duplicates != null) {
+						for (E d : n.duplicates) {
+							if (d != exclude) {
+								hit = d;
+								break;
+							}
+						}
+					}
+					if (hit != null) {
+						first = hit;
+						firstT = t;
+						ex = ax + t*(bx-ax); ey = ay + t*(by-ay);
+					}
+				}
+			}
+			n = next(n, near);
+		}
+		return first;
+	}
+
+	/**
+	 * Returns when a circle moving steadily along the segment first comes within reach of the position
+	 * @param ax	where the circle's center starts, x
+	 * @param ay	where the circle's center starts, y
+	 * @param bx	where the circle's center ends, x
+	 * @param by	where the circle's center ends, y
+	 * @param px	x coordinate of the position
+	 * @param py	y coordinate of the position
+	 * @param r		the circle's radius
+	 * @return		the fraction of the way along the segment, from 0 (already touching at the start) to 1
+	 * 				(just touching at the end), or -1 if it never touches
+	 */
+	public static double timeOfImpact(double ax, double ay, double bx, double by, double px, double py, double r) {
+		// solve |a + t(b-a) - p|^2 = r^2 for the smaller t
+		double fx = ax-px, fy = ay-py, dx = bx-ax, dy = by-ay;
+		double c = fx*fx + fy*fy - r*r;
+		if (c <= 0) return 0;								// touching from the start
+		double a = dx*dx + dy*dy, b = fx*dx + fy*dy;
+		if (a == 0 || b >= 0) return -1;					// not moving, or moving away
+		double disc = b*b - a*c;
+		if (disc < 0) return -1;							// passes wide
+		double t = (-b - Math.sqrt(disc)) / a;
+		return (t <= 1) ? t : -1;
+	}
+
+	/**
+	 * Returns the square of the distance from the position to the nearest spot of the segment
+	 */
+	private static double segmentDistanceSq(double ax, double ay, double bx, double by, double px, double py) {
+		double dx = bx-ax, dy = by-ay;
+		double length2 = dx*dx + dy*dy;
+		double t = (length2 == 0) ? 0 : Math.max(0, Math.min(1, ((px-ax)*dx + (py-ay)*dy) / length2));
+		double ex = ax + t*dx - px, ey = ay + t*dy - py;
+		return ex*ex + ey*ey;
+	}
+
+	/**
+	 * Returns the square of the distance between the nearest spots of the segment and the rectangle
+	 * (0 if they touch): unless the segment crosses the rectangle, the nearest spots include an end of
+	 * the segment or a corner of the rectangle
+	 */
+	private static double segmentRectangleDistanceSq(double ax, double ay, double bx, double by, int x1, int y1, int x2, int y2) {
+		double d = Math.min(rectangleDistanceSq(ax, ay, x1, y1, x2, y2), rectangleDistanceSq(bx, by, x1, y1, x2, y2));
+		if (d == 0) return 0;
+		// whether the segment crosses the rectangle: the parts of it within the rectangle's x and y ranges overlap
+		double dx = bx-ax, dy = by-ay;
+		double t0 = 0, t1 = 1;
+		if (dx != 0) {
+			double ta = (x1-ax)/dx, tb = (x2-ax)/dx;
+			t0 = Math.max(t0, Math.min(ta, tb)); t1 = Math.min(t1, Math.max(ta, tb));
+		}
+		if (dy != 0) {
+			double ta = (y1-ay)/dy, tb = (y2-ay)/dy;
+			t0 = Math.max(t0, Math.min(ta, tb)); t1 = Math.min(t1, Math.max(ta, tb));
+		}
+		if (t0 <= t1 && (dx != 0 || (x1 <= ax && ax <= x2)) && (dy != 0 || (y1 <= ay && ay <= y2))) return 0;
+		d = Math.min(d, Math.min(segmentDistanceSq(ax, ay, bx, by, x1, y1), segmentDistanceSq(ax, ay, bx, by, x2, y1)));
+		return Math.min(d, Math.min(segmentDistanceSq(ax, ay, bx, by, x1, y2), segmentDistanceSq(ax, ay, bx, by, x2, y2)));
+	}
+
+	/**
+	 * Finds the point nearest the position
+	 * @param x		x coordinate of the position
+	 * @param y		y coordinate of the position
+	 */
+	public E nearest(double x, double y) {
+		return kNearest(x, y, 1).get(0);
+	}
+
+	/**
+	 * Finds the k points nearest the position, best first: nodes are expanded in order of how close their
+	 * rectangles come to the position, and a point is only reported once nothing left to look at could be
+	 * closer, so the search stops as soon as it has k, without looking at anything farther than the k-th
+	 * @param x		x coordinate of the position
+	 * @param y		y coordinate of the position
+	 * @param k		how many points to find
+	 * @return		the k nearest points (or all of them, if there are fewer), nearest first
+	 */
+	public List<E> kNearest(double x, double y, int k) {
+		List<E> nearest = new ArrayList<E>(Math.max(0, Math.min(k, size)));
+		PriorityQueue<Candidate<E>> candidates = new PriorityQueue<Candidate<E>>();
+		candidates.add(new Candidate<E>(this, false, rectangleDistanceSq(x, y, x1, y1, x2, y2)));
+		while (nearest.size() < k && !candidates.isEmpty()) {
+			Candidate<E> c = candidates.poll();
+			if (c.pointOnly) {
+				nearest.add(c.node.point);
+				if (c.node.duplicates != null) {
+					for (int i = 0; i < c.node.duplicates.size() && nearest.size() < k; i++) nearest.add(c.node.duplicates.get(i));
+				}
+			}
+			else {
+				// its point, and then its children, to be looked at when they are the closest thing left
+				PointQuadtree<E> n = c.node;
+				double dx = n.point.getX()-x, dy = n.point.getY()-y;
+				candidates.add(new Candidate<E>(n, true, dx*dx + dy*dy));
+				for (PointQuadtree<E> child = n.childAfter(0); child != null; child = n.childAfter(child.quadrantInParent())) {
+					candidates.add(new Candidate<E>(child, false, rectangleDistanceSq(x, y, child.x1, child.y1, child.x2, child.y2)));
+				}
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Something to look at in a nearest-point search: a node's point alone, or the whole subtree,
+	 * ordered by how close it could possibly be
+	 */
+	private static class Candidate<E extends Point2D> implements Comparable<Candidate<E>> {
+		final PointQuadtree<E> node;
+		final boolean pointOnly;		// just the node's point (and duplicates), or its subtree
+		final double distSq;			// square of the distance to the point, or to the nearest spot of the rectangle
+
+		Candidate(PointQuadtree<E> node, boolean pointOnly, double distSq) {
+			this.node = node; this.pointOnly = pointOnly; this.distSq = distSq;
+		}
+
+		public int compareTo(Candidate<E> other) {
+			return Double.compare(distSq, other.distSq);
+		}
+	}
+
+	/**
+	 * Returns the square of the distance from the position to the nearest spot of the rectangle (0 if inside it)
+	 */
+	private static double rectangleDistanceSq(double x, double y, int x1, int y1, int x2, int y2) {
+		double dx = Math.max(0, Math.max(x1 - x, x - x2));
+		double dy = Math.max(0, Math.max(y1 - y, y - y2));
+		return dx*dx + dy*dy;
+	}
+
+	/**
+	 * Counts the points within the circle, without building a list of them; a node whose whole rectangle
+	 * is inside the circle adds its subtree's count without visiting any of it
+	 * @param cx	circle center x
+	 * @param cy  	circle center y
+	 * @param cr  	circle radius
+	 * @return    	how many points findInCircle would return
+	 */
+	public int countInCircle(double cx, double cy, double cr) {
+		int num = 0;
+		PointQuadtree<E> n = this;
+		while (n != null) {
+			if (rectangleInCircle(cx, cy, cr, n.x1, n.y1, n.x2, n.y2)) {
+				// everything in the subtree is in the circle
+				num += n.size;
+				n = next(n, false);
+			}
+			else {
+				boolean intersects = Geometry.circleIntersectsRectangle(cx, cy, cr, n.x1, n.y1, n.x2, n.y2);
+				if (intersects && Geometry.pointInCircle(n.point.getX(), n.point.getY(), cx, cy, cr)) num += n.multiplicity();
+				n = next(n, intersects);
+			}
+		}
+		return num;
+	}
+
+	/**
+	 * Returns whether the rectangle lies entirely within the circle (i.e., so does its farthest corner)
+	 */
+	private static boolean rectangleInCircle(double cx, double cy, double cr, int x1, int y1, int x2, int y2) {
+		double dx = Math.max(Math.abs(cx-x1), Math.abs(cx-x2));
+		double dy = Math.max(Math.abs(cy-y1), Math.abs(cy-y2));
+		return dx*dx + dy*dy <= cr*cr;
+	}
+
 	// TODO: YOUR CODE HERE for any helper methods
 	/**
 	 * helper method for findInCircle() that adds points that hit the circle to the given list
@@ -150,17 +1418,7 @@ public class PointQuadtree<E extends Point2D> {
 	 * @param cr  			circle radius
 	 */
 	public void findPoints(List<E> circleList, double cx, double cy, double cr) {
-		// if circle intersects rectangle
-		if (Geometry.circleIntersectsRectangle(cx, cy, cr, x1, y1, x2, y2)) {
-
-			// if a point is found within circle, add it to the list
-			if (Geometry.pointInCircle(point.getX(), point.getY(), cx, cy, cr)) circleList.add(point);
-
-			// recurse with all children
-			for (int quadrant = 1; quadrant <= 4; quadrant++) {
-				if (hasChild(quadrant)) getChild(quadrant).findPoints(circleList, cx, cy, cr);
-			}
-		}
+		findInCircle(cx, cy, cr, circleList::add);
 	}
 
 	/**
@@ -168,44 +1426,44 @@ public class PointQuadtree<E extends Point2D> {
 	 * @param pointList		given list of points
 	 */
 	public void addToAllPoints(List<E> pointList) {
-		// base case: adding the point with no children
-		if (!hasChild(1) && !hasChild(2) && !hasChild(3) && !hasChild(4)) {
-			pointList.add(point);
-		}
-		else {
-			// finding the children to recursively add to the list
-			if (hasChild(1)) c1.addToAllPoints(pointList);
-			if (hasChild(2)) c2.addToAllPoints(pointList);
-			if (hasChild(3)) c3.addToAllPoints(pointList);
-			if (hasChild(4)) c4.addToAllPoints(pointList);
+		// children before their parent (postorder): start at the first leaf, then after each node
+		// move to the first leaf under its next sibling, or up to its parent if it was the last child
+		PointQuadtree<E> n = firstLeaf(this);
+		while (true) {
+			pointList.add(n.point);
+			if (n.duplicates != null) pointList.addAll(n.duplicates);
+			if (n == this) return;
 
-			pointList.add(point);
+			PointQuadtree<E> sibling = n.parent.childAfter(n.quadrantInParent());
+			n = (sibling != null) ? firstLeaf(sibling) : n.parent;
 		}
 	}
 
+	/**
+	 * Follows first children down from the node until reaching a leaf
+	 */
+	private static <E extends Point2D> PointQuadtree<E> firstLeaf(PointQuadtree<E> n) {
+		for (PointQuadtree<E> child = n.childAfter(0); child != null; child = n.childAfter(0)) n = child;
+		return n;
+	}
+
 	/** toString method to check if the child-parent relationships are set up correctly
 	 *  the first line (before '||') states the coordinates of the root of the tree that calls this method
 	 * @return		a string in the format: point1 has a child cq, at point2; separated by '||'
 	 */
 	public String toString() {
-		String statement = "point ("+point.getX()+", "+point.getY()+") || ";
+		StringBuilder statement = new StringBuilder();
 
-		if (hasChild(1)) {
-			statement += "point ("+point.getX()+", "+point.getY()+") has child c1, ";
-			statement += c1.toString();
-		}
-		if (hasChild(2)) {
-			statement += "point ("+point.getX()+", "+point.getY()+") has child c2, ";
-			statement += c2.toString();
-		}
-		if (hasChild(3)) {
-			statement += "point ("+point.getX()+", "+point.getY()+") has child c3, ";
-			statement += c3.toString();
-		}
-		if (hasChild(4)) {
-			statement += "point ("+point.getX()+", "+point.getY()+") has child c4, ";
-			statement += c4.toString();
+		// a preorder walk, saying where each node hangs off its parent just before describing it
+		for (PointQuadtree<E> n = this; n != null; n = next(n, true)) {
+			if (n != this) {
+				PointQuadtree<E> p = n.parent;
+				statement.append("point ("+p.point.getX()+", "+p.point.getY()+") has child c"+n.quadrantInParent()+", ");
+			}
+			statement.append("point ("+n.point.getX()+", "+n.point.getY()+")");
+			if (n.duplicates != null) statement.append(" and "+n.duplicates.size()+" more there");
+			statement.append(" || ");
 		}
-		return statement;
+		return statement.toString();
 	}
 }
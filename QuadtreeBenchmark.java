@@ -0,0 +1,472 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Timing runs for point quadtrees, in the spirit of QuadtreeTest: hard-coded workloads run from main,
+ * printing how long each step took
+ * usage: java QuadtreeBenchmark [worst|bucket|compact|grid|concurrent|morton|loose|all] [number of points]
+ *        java QuadtreeBenchmark suite [sizes...]
+ */
+public class QuadtreeBenchmark {
+	private static final int world = 10000;			// points are placed in a world this big, square
+	/**
+	 * Times an operation, printing its name and how long it took
+	 */
+	private static void time(String name, Runnable op) {
+		long start = System.nanoTime();
+		op.run();
+		System.out.printf("  %-28s %10.1f ms%n", name, (System.nanoTime()-start)/1e6);
+	}
+
+	/**
+	 * Inserts n points along the diagonal, in order: the worst order for a point quadtree, since each
+	 * point falls in quadrant 4 of the one before, making a chain n deep; then walks that chain with
+	 * each of the traversals. None of it may throw StackOverflowError, however large n is; inserting
+	 * in this order is quadratic, though, so the full 1000000-point run takes the better part of an hour
+	 * (unlike the rebalancing run that follows).
+	 */
+	private static void worstCaseInsert(int n) {
+		System.out.println("worst-case (diagonal) insert, n="+n);
+		PointQuadtree<Dot> tree = new PointQuadtree<Dot>(new Dot(0, 0), 0, 0, n, n);
+		time("insert", () -> { for (int i = 1; i < n; i++) tree.insert(new Dot(i, i)); });
+		time("size", () -> check(tree.size() == n, "size"));
+		time("allPoints", () -> check(tree.allPoints().size() == n, "allPoints"));
+		time("findInCircle (corner)", () -> check(tree.findInCircle(n-1, n-1, 1.5).size() == 2, "findInCircle"));
+		time("toString", () -> check(tree.toString().length() > 0, "toString"));
+
+		// the same with rebalancing on, which keeps the tree logarithmically deep by rebuilding now and then
+		PointQuadtree<Dot> balanced = new PointQuadtree<Dot>(new Dot(0, 0), 0, 0, n, n);
+		QuadtreeMetrics metrics = new QuadtreeMetrics();
+		balanced.setMetrics(metrics);
+		balanced.setRebalancing(true);
+		time("rebalancing insert", () -> { for (int i = 1; i < n; i++) balanced.insert(new Dot(i, i)); });
+		System.out.printf("    %d rebuilds, %.1f points rebuilt per insert%n", metrics.getRebuilds(), (double) metrics.getRebuiltPoints() / n);
+		time("findInCircle (corner)", () -> check(balanced.findInCircle(n-1, n-1, 1.5).size() == 2, "findInCircle"));
+	}
+
+	/**
+	 * Complains if a result is wrong, so that a fast but broken run doesn't pass unnoticed
+	 */
+	private static void check(boolean ok, String what) {
+		if (!ok) System.err.println("wrong result from "+what);
+	}
+
+	/**
+	 * Makes n points scattered uniformly over the world (the same ones every run)
+	 */
+	private static List<Dot> uniform(int n) {
+		Random random = new Random(10);
+		List<Dot> dots = new ArrayList<Dot>(n);
+		for (int i = 0; i < n; i++) dots.add(new Dot(world*random.nextDouble(), world*random.nextDouble()));
+		return dots;
+	}
+
+	/**
+	 * Inserts the points into the index one at a time, timing it
+	 */
+	private static void insertAll(String name, SpatialIndex<Dot> index, List<Dot> dots, int from) {
+		time(name+" insert", () -> { for (int i = from; i < dots.size(); i++) index.insert(dots.get(i)); });
+	}
+
+	/**
+	 * Runs the same circle queries on the index, timing them and counting the tests and hits
+	 * @return		the total number of hits, to compare across indexes
+	 */
+	private static long queryAll(String name, SpatialIndex<Dot> index, int queries, double r) {
+		Random random = new Random(11);
+		long[] hits = new long[1];
+		Geometry.resetNumCircleRectangleTests();
+		Geometry.resetNumInCircleTests();
+		time(name+" findInCircle", () -> {
+			for (int i = 0; i < queries; i++) {
+				hits[0] += index.findInCircle(world*random.nextDouble(), world*random.nextDouble(), r).size();
+			}
+		});
+		System.out.println("    "+hits[0]+" hits, "+Geometry.getNumCircleRectangleTests()+" circle-rectangle and "
+				+Geometry.getNumInCircleTests()+" in-circle tests");
+		return hits[0];
+	}
+
+	/**
+	 * Compares a PointQuadtree with bucket quadtrees of several leaf capacities, inserting the same
+	 * uniformly scattered points and running the same queries on each
+	 */
+	private static void bucketVsPoint(int n) {
+		System.out.println("bucket vs point quadtree, n="+n+", uniform");
+		List<Dot> dots = uniform(n);
+		int queries = 10000;
+		double r = world * Math.sqrt(20.0 / (Math.PI * n));		// about 20 hits per query
+
+		PointQuadtree<Dot> pointTree = new PointQuadtree<Dot>(dots.get(0), 0, 0, world, world);
+		insertAll("point", pointTree, dots, 1);
+		long expected = queryAll("point", pointTree, queries, r);
+
+		for (int capacity : new int[] { 1, 4, 8, 16, 32, 64 }) {
+			BucketQuadtree<Dot> bucketTree = new BucketQuadtree<Dot>(0, 0, world, world, capacity);
+			insertAll("bucket K="+capacity, bucketTree, dots, 0);
+			check(queryAll("bucket K="+capacity, bucketTree, queries, r) == expected, "bucket findInCircle");
+		}
+	}
+
+	/**
+	 * Returns how many bytes of heap are in use, after asking for a collection so that garbage isn't counted
+	 */
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Compares a PointQuadtree with a CompactQuadtree of the same points: bytes of heap per point that
+	 * each index adds on top of the points themselves, and the time to insert and query
+	 */
+	private static void compactVsPoint(int n) {
+		System.out.println("compact vs point quadtree, n="+n+", uniform");
+		List<Dot> dots = uniform(n);
+		int queries = 10000;
+		double r = world * Math.sqrt(20.0 / (Math.PI * n));		// about 20 hits per query
+
+		long before = usedHeap();
+		PointQuadtree<Dot> pointTree = new PointQuadtree<Dot>(dots.get(0), 0, 0, world, world);
+		insertAll("point", pointTree, dots, 1);
+		System.out.printf("    %.1f bytes per point%n", (double) (usedHeap()-before) / n);
+		long expected = queryAll("point", pointTree, queries, r);
+		pointTree = null;
+
+		before = usedHeap();
+		CompactQuadtree<Dot> compactTree = new CompactQuadtree<Dot>(0, 0, world, world);
+		insertAll("compact", compactTree, dots, 0);
+		System.out.printf("    %.1f bytes per point (%d in use, the rest room to grow)%n",
+				(double) (usedHeap()-before) / n, CompactQuadtree.bytesPerPoint());
+		check(queryAll("compact", compactTree, queries, r) == expected, "compact findInCircle");
+	}
+
+	/**
+	 * Compares a balanced PointQuadtree with a MortonQuadtree of the same points: the time to build each
+	 * from the whole list, and to query them
+	 */
+	private static void mortonVsPoint(int n) {
+		System.out.println("morton vs point quadtree, n="+n+", uniform");
+		List<Dot> dots = uniform(n);
+		int queries = 10000;
+		double r = world * Math.sqrt(20.0 / (Math.PI * n));		// about 20 hits per query
+
+		List<PointQuadtree<Dot>> built = new ArrayList<PointQuadtree<Dot>>();
+		time("point build", () -> built.add(PointQuadtree.build(dots, 0, 0, world, world)));
+		long expected = queryAll("point", built.get(0), queries, r);
+
+		MortonQuadtree<Dot> mortonTree = new MortonQuadtree<Dot>(0, 0, world, world);
+		time("morton build", () -> mortonTree.rebuild(dots));
+		check(queryAll("morton", mortonTree, queries, r) == expected, "morton findInCircle");
+	}
+
+	/**
+	 * Compares a point quadtree of centers with a LooseQuadtree on circles of mixed sizes (mostly small, a
+	 * few a hundred times bigger): the point tree has to take every pair within reach of the two biggest
+	 * as a candidate and check it, while the loose tree only pairs circles that do overlap
+	 */
+	private static void looseVsPoint(int n) {
+		System.out.println("loose vs point quadtree, n="+n+", uniform, mixed sizes");
+		List<Dot> dots = uniform(n);
+		Random random = new Random(14);
+		Map<Dot, Double> radii = new IdentityHashMap<Dot, Double>();
+		double small = world * Math.sqrt(1.0 / (Math.PI * n)) / 2;	// a few overlaps among the small ones
+		double maxR = 0;
+		for (Dot d : dots) {
+			double r = (random.nextInt(100) == 0) ? 100*small*random.nextDouble() : small*random.nextDouble();
+			radii.put(d, r);
+			maxR = Math.max(maxR, r);
+		}
+		double reach = 2*maxR;
+
+		List<PointQuadtree<Dot>> built = new ArrayList<PointQuadtree<Dot>>();
+		time("point build", () -> built.add(PointQuadtree.build(dots, 0, 0, world, world)));
+		long[] candidates = new long[1], overlaps = new long[2];
+		time("point pairs", () -> built.get(0).findAllPairsWithin(reach, (a, b) -> {
+			candidates[0]++;
+			if (Math.hypot(a.getX()-b.getX(), a.getY()-b.getY()) <= radii.get(a) + radii.get(b)) overlaps[0]++;
+		}));
+		System.out.println("    "+candidates[0]+" candidates, "+overlaps[0]+" overlapping");
+
+		LooseQuadtree<Dot> looseTree = new LooseQuadtree<Dot>(0, 0, world, world, radii::get);
+		insertAll("loose", looseTree, dots, 0);
+		time("loose pairs", () -> looseTree.findAllOverlappingPairs((a, b) -> overlaps[1]++));
+		System.out.println("    "+overlaps[1]+" overlapping");
+		check(overlaps[0] == overlaps[1], "loose findAllOverlappingPairs");
+	}
+
+	/**
+	 * Makes n points in clumps: a few hundred centers, with points scattered normally around each
+	 */
+	private static List<Dot> clustered(int n) {
+		Random random = new Random(12);
+		double[][] centers = new double[256][2];
+		for (double[] c : centers) { c[0] = world*random.nextDouble(); c[1] = world*random.nextDouble(); }
+		List<Dot> dots = new ArrayList<Dot>(n);
+		while (dots.size() < n) {
+			double[] c = centers[random.nextInt(centers.length)];
+			double x = c[0] + 50*random.nextGaussian(), y = c[1] + 50*random.nextGaussian();
+			if (0 <= x && x <= world && 0 <= y && y <= world) dots.add(new Dot(x, y));
+		}
+		return dots;
+	}
+
+	/**
+	 * Makes n points along the diagonal, in order (the worst order for inserting)
+	 */
+	private static List<Dot> diagonal(int n) {
+		List<Dot> dots = new ArrayList<Dot>(n);
+		for (int i = 0; i < n; i++) dots.add(new Dot((double) world*i/n, (double) world*i/n));
+		return dots;
+	}
+
+	/**
+	 * Makes n points snapped to just a thousand spots, so each spot has many points on it
+	 */
+	private static List<Dot> duplicates(int n) {
+		Random random = new Random(13);
+		List<Dot> dots = new ArrayList<Dot>(n);
+		for (int i = 0; i < n; i++) dots.add(new Dot(world/32*random.nextInt(32), world/32*random.nextInt(32)));
+		return dots;
+	}
+
+	/**
+	 * Returns the bytes allocated so far by all live threads (including the fork-join pool's)
+	 */
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) if (bytes > 0) total += bytes;
+		return total;
+	}
+
+	/**
+	 * Returns the number of collections so far, over all collectors
+	 */
+	private static long collections() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) total += Math.max(0, gc.getCollectionCount());
+		return total;
+	}
+
+	/**
+	 * CollisionGUI's step, over n blobs of the given type ('b'ouncers or 'w'anderers) in a world sized
+	 * to keep them about as crowded as a few hundred in the GUI's window: moving every blob and then finding
+	 * the colliders, with the quadtree rebuilt each step, with it kept up to date (as the GUI does), and
+	 * with a grid re-sorted each step
+	 */
+	private static void collisionSteps(char type, int n) {
+		int side = (int) Math.sqrt(n * 2000.0);			// 800x600 holds 240 blobs at this density
+		Random random = new Random(16);
+		List<Blob> blobs = new ArrayList<Blob>();
+		for (int i = 0; i < n; i++) {
+			double x = 5 + (side-10)*random.nextDouble(), y = 5 + (side-10)*random.nextDouble();
+			blobs.add(type == 'b' ? new Bouncer(x, y, side, side) : new Wanderer(x, y));
+		}
+		System.out.println((type == 'b' ? "bouncers" : "wanderers")+", n="+n);
+		int steps = 20, runs = 5;
+		double reach = 10;								// twice a blob's radius
+		long[] pairs = new long[3];
+
+		measure("tree, rebuilt each step", runs, () -> {
+			for (int s = 0; s < steps; s++) {
+				for (Blob b : blobs) b.step();
+				PointQuadtree<Blob> tree = PointQuadtree.build(blobs, 0, 0, side, side);
+				if (tree != null) tree.findAllPairsWithin(reach, (a, b) -> pairs[0]++);
+			}
+		});
+		List<PointQuadtree<Blob>> kept = new ArrayList<PointQuadtree<Blob>>();
+		kept.add(null);
+		measure("tree, updated each step", runs, () -> {
+			for (int s = 0; s < steps; s++) {
+				PointQuadtree<Blob> tree = kept.get(0);
+				for (Blob b : blobs) {
+					double oldX = b.x, oldY = b.y;
+					b.step();
+					if (tree != null && !tree.update(b, oldX, oldY)) tree = null;
+				}
+				if (tree == null) {
+					tree = PointQuadtree.build(blobs, 0, 0, side, side);
+					if (tree != null) tree.setLoose(true);
+				}
+				kept.set(0, tree);
+				if (tree != null) tree.findAllPairsWithin(reach, (a, b) -> pairs[1]++);
+			}
+		});
+		GridIndex<Blob> grid = new GridIndex<Blob>(0, 0, side, side, reach);
+		measure("grid, re-sorted each step", runs, () -> {
+			for (int s = 0; s < steps; s++) {
+				for (Blob b : blobs) b.step();
+				grid.rebuild(blobs);
+				grid.findAllPairsWithin(reach, (a, b) -> pairs[2]++);
+			}
+		});
+
+		// all three index the same blobs at the end, so must find the same pairs then
+		PointQuadtree<Blob> tree = PointQuadtree.build(blobs, 0, 0, side, side);
+		long[] last = new long[2];
+		if (tree != null) tree.findAllPairsWithin(reach, (a, b) -> last[0]++);
+		grid.rebuild(blobs);
+		grid.findAllPairsWithin(reach, (a, b) -> last[1]++);
+		check(last[0] == last[1], "grid pairs");
+	}
+
+	private static void gridVsTree(int n) {
+		collisionSteps('b', n);
+		collisionSteps('w', n);
+	}
+
+	/**
+	 * Runs a mix of inserts and circle queries from every processor at once for about a second,
+	 * printing how many operations were done per millisecond
+	 * @param writes	the fraction of operations that are inserts
+	 * @param insert	does an insert
+	 * @param query		does a query
+	 */
+	private static void throughput(String name, double writes, Consumer<Dot> insert, Consumer<Dot> query) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		long[] ops = new long[threads];
+		long end = System.nanoTime() + 1000000000L;
+		List<Thread> running = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			int id = t;
+			running.add(new Thread(() -> {
+				Random random = new Random(id);
+				long done = 0;
+				while ((done & 255) != 0 || System.nanoTime() < end) {
+					Dot d = new Dot(world*random.nextDouble(), world*random.nextDouble());
+					if (random.nextDouble() < writes) insert.accept(d);
+					else query.accept(d);
+					done++;
+				}
+				ops[id] = done;
+			}));
+		}
+		long start = System.nanoTime();
+		for (Thread t : running) t.start();
+		for (Thread t : running) {
+			try { t.join(); } catch (InterruptedException e) { throw new RuntimeException(e); }
+		}
+		long total = 0;
+		for (long o : ops) total += o;
+		System.out.printf("  %-28s %10.1f ops/ms%n", name, total / ((System.nanoTime()-start)/1e6));
+	}
+
+	/**
+	 * Mixed reads and writes from many threads: the concurrent tree, against a plain tree behind a
+	 * read-write lock, starting from n points and at several fractions of writes
+	 */
+	private static void concurrentVsLocked(int n) {
+		List<Dot> dots = uniform(n);
+		double r = world * Math.sqrt(5.0 / (Math.PI * n));
+		System.out.println("mixed reads and writes, n="+n+", "+Runtime.getRuntime().availableProcessors()+" threads");
+		for (double writes : new double[] { 0, 0.01, 0.1, 0.5, 0.9 }) {
+			System.out.println(" "+(int) (100*writes)+"% writes");
+			ConcurrentQuadtree<Dot> concurrent = new ConcurrentQuadtree<Dot>(0, 0, world, world);
+			for (Dot d : dots) concurrent.insert(d);
+			throughput("concurrent", writes, concurrent::insert, d -> concurrent.countInCircle(d.getX(), d.getY(), r));
+			System.out.println("  ("+concurrent.getRetries()+" writes retried)");
+
+			PointQuadtree<Dot> plain = new PointQuadtree<Dot>(dots.get(0), 0, 0, world, world);	// inserted too, for the same shape
+			for (int i = 1; i < n; i++) plain.insert(dots.get(i));
+			ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+			throughput("read-write locked", writes, d -> {
+				lock.writeLock().lock();
+				try { plain.insert(d); } finally { lock.writeLock().unlock(); }
+			}, d -> {
+				lock.readLock().lock();
+				try { plain.countInCircle(d.getX(), d.getY(), r); } finally { lock.readLock().unlock(); }
+			});
+		}
+	}
+
+	/**
+	 * Runs the operation a couple of times to warm up, then several more, printing the best and average
+	 * time of those and how much each run allocated and collected on average
+	 */
+	private static void measure(String name, int runs, Runnable op) {
+		for (int i = 0; i < 2; i++) op.run();
+		long best = Long.MAX_VALUE, total = 0;
+		long allocated = allocatedBytes(), gcs = collections();
+		for (int i = 0; i < runs; i++) {
+			long start = System.nanoTime();
+			op.run();
+			long took = System.nanoTime() - start;
+			best = Math.min(best, took);
+			total += took;
+		}
+		System.out.printf("  %-28s best %10.2f ms  avg %10.2f ms  %10.1f MB/op  %5.1f gc/op%n", name, best/1e6, total/1e6/runs,
+				(allocatedBytes()-allocated)/1e6/runs, (double) (collections()-gcs)/runs);
+	}
+
+	/**
+	 * The regression suite: each build and query path, over each distribution, at each size. Inserting one
+	 * at a time along the diagonal is quadratic, so that is only run at the smaller sizes.
+	 */
+	private static void suite(int[] sizes) {
+		String[] distributions = { "uniform", "clustered", "diagonal", "duplicates" };
+		for (int n : sizes) {
+			for (String distribution : distributions) {
+				List<Dot> dots = distribution.equals("uniform") ? uniform(n)
+						: distribution.equals("clustered") ? clustered(n)
+						: distribution.equals("diagonal") ? diagonal(n) : duplicates(n);
+				System.out.println(distribution+", n="+n);
+				int runs = (n <= 100000) ? 10 : 3;
+				double r = world * Math.sqrt(5.0 / (Math.PI * n));		// about 5 uniform neighbors (for collisions)
+
+				if (!distribution.equals("diagonal") || n <= 20000) {
+					measure("insert", runs, () -> {
+						PointQuadtree<Dot> tree = new PointQuadtree<Dot>(dots.get(0), 0, 0, world, world);
+						for (int i = 1; i < n; i++) tree.insert(dots.get(i));
+					});
+				}
+				measure("build", runs, () -> PointQuadtree.build(dots, 0, 0, world, world));
+
+				PointQuadtree<Dot> tree = PointQuadtree.build(dots, 0, 0, world, world);
+				measure("allPoints", runs, () -> tree.allPoints());
+				Random random = new Random(14);
+				measure("findInCircle x10000", runs, () -> {
+					for (int i = 0; i < 10000; i++) tree.findInCircle(world*random.nextDouble(), world*random.nextDouble(), 4*r);
+				});
+				// what CollisionGUI.findColliders does each step, as a query per point and as one pass for all pairs
+				if (n <= 1000000) {
+					long[] found = new long[1];
+					measure("colliders, query per point", runs, () -> {
+						for (Dot d : dots) tree.findInCircle(d.getX(), d.getY(), r, p -> found[0]++);
+					});
+				}
+				long[] pairs = new long[1];
+				measure("colliders, all pairs", runs, () -> tree.findAllPairsWithin(r, (a, b) -> pairs[0]++));
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		String which = (args.length > 0) ? args[0] : "all";
+		if (which.equals("suite")) {
+			int[] sizes = { 1000, 10000, 100000, 1000000 };
+			if (args.length > 1) {
+				sizes = new int[args.length-1];
+				for (int i = 1; i < args.length; i++) sizes[i-1] = Integer.parseInt(args[i]);
+			}
+			suite(sizes);
+			return;
+		}
+		int n = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+		if (which.equals("worst") || which.equals("all")) worstCaseInsert(n);
+		if (which.equals("bucket") || which.equals("all")) bucketVsPoint(n);
+		if (which.equals("compact") || which.equals("all")) compactVsPoint(n);
+		if (which.equals("grid") || which.equals("all")) gridVsTree(n);
+		if (which.equals("concurrent") || which.equals("all")) concurrentVsLocked(n);
+		if (which.equals("morton") || which.equals("all")) mortonVsPoint(n);
+		if (which.equals("loose") || which.equals("all")) looseVsPoint(n);
+	}
+}
@@ -0,0 +1,185 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts of what a quadtree does, for watching it in production: per-query work (nodes visited, subtrees
+ * pruned, points tested, hits), how deep points are placed, rebalancing rebuilds, and how long builds and queries take.
+ * Unlike Geometry's counters, these belong to one tree (see PointQuadtree.setMetrics), are safe to update
+ * from many threads at once (LongAdders), and cost nothing but a null check in a tree without them.
+ *
+ * The histograms have a bucket per power of two: times in bucket i took from 2^i up to 2^(i+1) nanoseconds
+ * (bucket 0 also takes 0), and depths in bucket i are exactly i (the last bucket also taking anything deeper).
+ * Depths (and the maximum depth) are where points were placed when they went in, a history that later
+ * rebuilds don't rewrite; the height is the tree as it is now, after its latest change.
+ */
+public class QuadtreeMetrics implements QuadtreeMetricsMBean {
+	private static final int BUCKETS = 64;
+
+	private final LongAdder queries = new LongAdder();
+	private final LongAdder nodeVisits = new LongAdder();
+	private final LongAdder prunedSubtrees = new LongAdder();
+	private final LongAdder pointTests = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder inserts = new LongAdder();
+	private final LongAdder rebuilds = new LongAdder();
+	private final LongAdder rebuiltPoints = new LongAdder();
+	private volatile long height;				// the tree's height after its latest change
+	private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+	private final LongAdder[] depths = newHistogram();
+	private final LongAdder[] buildTimes = newHistogram();
+	private final LongAdder[] queryLatencies = newHistogram();
+
+	private static LongAdder[] newHistogram() {
+		LongAdder[] histogram = new LongAdder[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) histogram[i] = new LongAdder();
+		return histogram;
+	}
+
+	/**
+	 * Records a finished query
+	 * @param visits	nodes whose rectangles were tested
+	 * @param pruned	of those, the ones whose subtrees were skipped
+	 * @param tests		points tested against the query
+	 * @param found		points found
+	 * @param nanos		how long it took
+	 */
+	public void recordQuery(int visits, int pruned, int tests, int found, long nanos) {
+		queries.increment();
+		nodeVisits.add(visits);
+		prunedSubtrees.add(pruned);
+		pointTests.add(tests);
+		hits.add(found);
+		queryLatencies[timeBucket(nanos)].increment();
+	}
+
+	/**
+	 * Records a point being placed at a depth (0 for the root), by insert or a build
+	 */
+	public void recordDepth(int depth) {
+		inserts.increment();
+		depths[Math.min(depth, BUCKETS-1)].increment();
+		maxDepth.accumulate(depth);
+	}
+
+	/**
+	 * Records a rebalancing insert rebuilding a subtree (see PointQuadtree.setRebalancing)
+	 * @param points	how many points the subtree held, and so had to be placed again
+	 */
+	public void recordRebuild(int points) {
+		rebuilds.increment();
+		rebuiltPoints.add(points);
+	}
+
+	/**
+	 * Records the tree's height (levels below the root) now that it has changed
+	 */
+	public void recordHeight(int height) {
+		this.height = height;
+	}
+
+	/**
+	 * Records how long a build took
+	 */
+	public void recordBuild(long nanos) {
+		buildTimes[timeBucket(nanos)].increment();
+	}
+
+	/**
+	 * Returns which power-of-two bucket a time falls in
+	 */
+	private static int timeBucket(long nanos) {
+		return (nanos <= 0) ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+	}
+
+	/**
+	 * Makes these metrics visible over JMX, as quadtree:type=QuadtreeMetrics,name=(name)
+	 */
+	public void register(String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("quadtree:type=QuadtreeMetrics,name="+ObjectName.quote(name)));
+		}
+		catch (JMException e) {
+			throw new IllegalStateException("can't register quadtree metrics "+name, e);
+		}
+	}
+
+	// Getters, also what JMX shows
+
+	public long getQueries() {
+		return queries.sum();
+	}
+
+	public long getNodeVisits() {
+		return nodeVisits.sum();
+	}
+
+	public long getPrunedSubtrees() {
+		return prunedSubtrees.sum();
+	}
+
+	public long getPointTests() {
+		return pointTests.sum();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getInserts() {
+		return inserts.sum();
+	}
+
+	public long getRebuilds() {
+		return rebuilds.sum();
+	}
+
+	public long getRebuiltPoints() {
+		return rebuiltPoints.sum();
+	}
+
+	public long getHeight() {
+		return height;
+	}
+
+	public long getMaxDepth() {
+		return maxDepth.get();
+	}
+
+	public long[] getDepthHistogram() {
+		return sums(depths);
+	}
+
+	public long[] getBuildTimeHistogram() {
+		return sums(buildTimes);
+	}
+
+	public long[] getQueryLatencyHistogram() {
+		return sums(queryLatencies);
+	}
+
+	private static long[] sums(LongAdder[] histogram) {
+		long[] counts = new long[histogram.length];
+		for (int i = 0; i < histogram.length; i++) counts[i] = histogram[i].sum();
+		return counts;
+	}
+
+	/**
+	 * Sets everything back to zero (not atomically: what is recorded meanwhile may be partly kept)
+	 */
+	public void reset() {
+		queries.reset(); nodeVisits.reset(); prunedSubtrees.reset(); pointTests.reset(); hits.reset();
+		inserts.reset(); rebuilds.reset(); rebuiltPoints.reset(); maxDepth.reset(); height = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			depths[i].reset(); buildTimes[i].reset(); queryLatencies[i].reset();
+		}
+	}
+
+	public String toString() {
+		return "queries "+getQueries()+", node visits "+getNodeVisits()+", pruned "+getPrunedSubtrees()
+				+", point tests "+getPointTests()+", hits "+getHits()+", inserts "+getInserts()+", rebuilds "+getRebuilds()+" ("+getRebuiltPoints()+" points), max depth "+getMaxDepth()+", height "+getHeight();
+	}
+}
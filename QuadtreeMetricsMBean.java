@@ -0,0 +1,19 @@
+/**
+ * What QuadtreeMetrics shows over JMX (e.g., in JConsole or VisualVM)
+ */
+public interface QuadtreeMetricsMBean {
+	long getQueries();
+	long getNodeVisits();
+	long getPrunedSubtrees();
+	long getPointTests();
+	long getHits();
+	long getInserts();
+	long getRebuilds();
+	long getRebuiltPoints();
+	long getMaxDepth();
+	long getHeight();
+	long[] getDepthHistogram();
+	long[] getBuildTimeHistogram();
+	long[] getQueryLatencyHistogram();
+	void reset();
+}
@@ -4,8 +4,19 @@ date: 05.02.2021
 purpose: altering scaffold to write my own test methods (hitTest() and test2()) for PS2.
  */
 
+import java.awt.geom.Path2D;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Hard-coded tests for point quadtrees, Dartmouth CS 10, Fall 2017
@@ -114,6 +125,12 @@ public class QuadtreeTest {
 		bad += testFind(tree, 300,400,15,10,6,2);	// rect for A [D [G F H]] [E] [B [C]] [K [L]]; circle for A,D,E,B,K,L; find A,L
 		bad += testFind(tree, 495,225,50,10,6,3);	// rect for A [D [G F H [I [J]]]] [E] [B] [K]; circle for A,D,G,H,I,J; find H,I,J
 		bad += testFind(tree, 0,0,900,12,12,12);		// rect for all; circle for all; find all
+		if (tree.countInCircle(0,0,1000) != 12) bad++;		// whole tree inside the circle
+		if (tree.countInCircle(495,225,50) != 3) bad++;		// H, I, J
+		if (!tree.anyInCircle(495,225,50) || tree.anyInCircle(750,550,10)) bad++;
+		List<Dot> hits = new ArrayList<Dot>();
+		tree.findInCircle(495,225,50, hits::add);
+		if (!hits.equals(tree.findInCircle(495,225,50))) bad++;
 		if (bad==0) System.out.println("test 1 passed!");
 		else System.out.println("test 1 failed!");
 	}
@@ -188,10 +205,797 @@ public class QuadtreeTest {
 		System.out.println(tree);		// my toString() that tells me who has what child and where
 	}
 
+	/**
+	 * builds the test 1 tree in one go, and a large one from sorted points (which would make a chain via insert),
+	 * checking both against the points they were built from
+	 */
+	private static void testBuild() {
+		List<Dot> dots = new ArrayList<Dot>();
+		dots.add(new Dot(300,400, "A")); dots.add(new Dot(150,450, "B")); dots.add(new Dot(250,550, "C"));
+		dots.add(new Dot(450,200, "D")); dots.add(new Dot(200,250, "E")); dots.add(new Dot(350,175, "F"));
+		dots.add(new Dot(500,125, "G")); dots.add(new Dot(475,250, "H")); dots.add(new Dot(525,225, "I"));
+		dots.add(new Dot(490,215, "J")); dots.add(new Dot(700,550, "K")); dots.add(new Dot(310,410, "L"));
+		PointQuadtree<Dot> tree = PointQuadtree.build(dots, 0,0,800,600);
+		int bad = 0;
+		bad += testSize(tree, 12);
+		if (tree.findInCircle(150,450,10).size() != 1) bad++;		// B
+		if (tree.findInCircle(300,400,15).size() != 2) bad++;		// A, L
+		if (tree.findInCircle(495,225,50).size() != 3) bad++;		// H, I, J
+
+		// big enough to be built in parallel
+		List<Dot> diagonal = new ArrayList<Dot>();
+		for (int i = 0; i < 100000; i++) diagonal.add(new Dot(i, i));
+		PointQuadtree<Dot> big = PointQuadtree.build(diagonal, 0,0,100000,100000);
+		bad += testSize(big, 100000);
+		if (big.findInCircle(5000,5000,10).size() != 15) bad++;		// (4993,4993) through (5007,5007)
+
+		// all within one unit cell, which no split can divide, so they chain (without overflowing the stack,
+		// whether building in one go or rebuilding below a removed point)
+		Random random = new Random(19);
+		List<Dot> clustered = new ArrayList<Dot>();
+		for (int i = 0; i < 10000; i++) clustered.add(new Dot(5+random.nextDouble(), 5+random.nextDouble()));
+		PointQuadtree<Dot> cluster = PointQuadtree.build(clustered, 0,0,100,100);
+		bad += testSize(cluster, 10000);
+		if (cluster.getHeight() != 9999 || cluster.countInCircle(5.5,5.5,1) != 10000) bad++;
+		cluster.remove(cluster.getPoint());
+		bad += testSize(cluster, 9999);
+		if (cluster.findInCircle(0,0,5).size() != 0) bad++;
+
+		if (PointQuadtree.build(new ArrayList<Dot>(), 0,0,800,600) != null) bad++;
+		if (bad==0) System.out.println("build test passed!");
+		else System.out.println("build test failed!");
+	}
+
+	/**
+	 * a chain tens of thousands deep (points inserted along the diagonal), which used to overflow the stack
+	 * in insert and in every traversal
+	 */
+	private static void testDeepChain() {
+		int n = 30000;
+		PointQuadtree<Dot> tree = new PointQuadtree<Dot>(new Dot(0,0), 0,0,n,n);
+		for (int i = 1; i < n; i++) tree.insert(new Dot(i, i));
+		int bad = 0;
+		bad += testSize(tree, n);
+		if (tree.findInCircle(n-1, n-1, 1.5).size() != 2) bad++;
+		if (!tree.toString().endsWith("point ("+(n-1.0)+", "+(n-1.0)+") || ")) bad++;
+		if (bad==0) System.out.println("deep chain test passed!");
+		else System.out.println("deep chain test failed!");
+	}
+
+	/**
+	 * a bucket quadtree with small leaves should find the same points as a point quadtree,
+	 * including more coincident points than a leaf holds (which no split can separate)
+	 */
+	private static void testBucket() {
+		PointQuadtree<Dot> pointTree = new PointQuadtree<Dot>(new Dot(300,400, "A"), 0,0,800,600);
+		BucketQuadtree<Dot> bucketTree = new BucketQuadtree<Dot>(0,0,800,600, 2);
+		bucketTree.insert(pointTree.getPoint());
+		double[][] xys = { {150,450}, {250,550}, {450,200}, {200,250}, {350,175}, {500,125}, {475,250},
+				{525,225}, {490,215}, {700,550}, {310,410}, {0,0}, {0,0}, {0,0}, {0,0} };
+		for (double[] xy : xys) {
+			Dot dot = new Dot(xy[0], xy[1]);
+			pointTree.insert(dot);
+			bucketTree.insert(dot);
+		}
+		bucketTree.insert(new Dot(900, 100));		// outside, so ignored
+		int bad = 0;
+		if (bucketTree.size() != 16 || bucketTree.allPoints().size() != 16) bad++;
+		double[][] queries = { {150,450,10}, {300,400,15}, {495,225,50}, {0,0,900}, {5,0,5}, {750,550,10} };
+		for (double[] q : queries) {
+			if (bucketTree.findInCircle(q[0], q[1], q[2]).size() != pointTree.findInCircle(q[0], q[1], q[2]).size()) bad++;
+			if (bucketTree.countInCircle(q[0], q[1], q[2]) != pointTree.countInCircle(q[0], q[1], q[2])) bad++;
+		}
+		if (bad==0) System.out.println("bucket test passed!");
+		else System.out.println("bucket test failed!");
+	}
+
+	/**
+	 * a growing bucket tree, started over a tiny rectangle, should take points kilometers away in every
+	 * direction (keeping ones a tenth of a millimeter apart apart), and find just what a brute-force search does
+	 */
+	private static void testGrowing() {
+		BucketQuadtree<Dot> tree = new BucketQuadtree<Dot>(0,0,1,1);
+		tree.setGrowing(true);
+		Random random = new Random(18);
+		List<Dot> dots = new ArrayList<Dot>();
+		for (int i = 0; i < 3000; i++) dots.add(new Dot(-3000 + 7000*random.nextDouble(), -2000 + 4500*random.nextDouble()));
+		for (int i = 0; i < 20; i++) dots.add(new Dot(1234.5 + 0.0001*i, -876.5));
+		for (Dot d : dots) tree.insert(d);
+		tree.insert(new Dot(Double.NaN, 0));		// nowhere to grow to, so ignored
+
+		int bad = 0;
+		if (tree.size() != dots.size() || tree.getX1() > -3000 || tree.getX2() < 4000 || tree.getY1() > -2000 || tree.getY2() < 2500) bad++;
+		for (int i = 0; i < 200; i++) {
+			double cx = -3000 + 7000*random.nextDouble(), cy = -2000 + 4500*random.nextDouble(), cr = 300*random.nextDouble();
+			if (i < 20) { cx = 1234.5 + 0.0001*i; cy = -876.5; cr = 0.00004; }
+			Set<Dot> expected = new HashSet<Dot>();
+			for (Dot d : dots) if ((d.getX()-cx)*(d.getX()-cx) + (d.getY()-cy)*(d.getY()-cy) <= cr*cr) expected.add(d);
+			if (i < 20 && expected.size() != 1) bad++;
+			if (!new HashSet<Dot>(tree.findInCircle(cx, cy, cr)).equals(expected) || tree.countInCircle(cx, cy, cr) != expected.size()) bad++;
+		}
+		if (bad==0) System.out.println("growing test passed!");
+		else System.out.println("growing test failed!");
+	}
+
+	/**
+	 * a compact quadtree of the test 1 points should find the same points, in the same order, as a point quadtree
+	 */
+	private static void testCompact() {
+		PointQuadtree<Dot> pointTree = new PointQuadtree<Dot>(new Dot(300,400, "A"), 0,0,800,600);
+		CompactQuadtree<Dot> compactTree = new CompactQuadtree<Dot>(0,0,800,600);
+		compactTree.insert(pointTree.getPoint());
+		double[][] xys = { {150,450}, {250,550}, {450,200}, {200,250}, {350,175}, {500,125}, {475,250},
+				{525,225}, {490,215}, {700,550}, {310,410}, {0,0}, {0,0} };
+		for (double[] xy : xys) {
+			Dot dot = new Dot(xy[0], xy[1]);
+			pointTree.insert(dot);
+			compactTree.insert(dot);
+		}
+		int bad = 0;
+		if (compactTree.size() != 14 || compactTree.get(1) != pointTree.getChild(3).getPoint()) bad++;
+		double[][] queries = { {150,450,10}, {300,400,15}, {495,225,50}, {0,0,900}, {5,0,5} };
+		for (double[] q : queries) {
+			if (!compactTree.findInCircle(q[0], q[1], q[2]).equals(pointTree.findInCircle(q[0], q[1], q[2]))) bad++;
+		}
+		if (bad==0) System.out.println("compact test passed!");
+		else System.out.println("compact test failed!");
+	}
+
+	/**
+	 * removing leaves, inner nodes and the root from the test 1 tree, and moving points around in another
+	 */
+	private static void testRemoveUpdate() {
+		Dot a = new Dot(300,400, "A"), d = new Dot(450,200, "D"), k = new Dot(700,550, "K");
+		PointQuadtree<Dot> tree = new PointQuadtree<Dot>(a, 0,0,800,600); // start with A
+		tree.insert(new Dot(150,450, "B"));
+		tree.insert(new Dot(250,550, "C"));
+		tree.insert(d);
+		tree.insert(new Dot(200,250, "E"));
+		tree.insert(new Dot(350,175, "F"));
+		tree.insert(new Dot(500,125, "G"));
+		tree.insert(new Dot(475,250, "H"));
+		tree.insert(new Dot(525,225, "I"));
+		tree.insert(new Dot(490,215, "J"));
+		tree.insert(k);
+		Dot l = new Dot(310,410, "L");
+		tree.insert(l);
+		int bad = 0;
+
+		if (!tree.remove(l)) bad++;						// a leaf
+		if (tree.remove(l)) bad++;						// no longer there
+		bad += testSize(tree, 11);
+		if (!tree.remove(d)) bad++;						// D, with F G H I J below it
+		bad += testSize(tree, 10);
+		if (tree.findInCircle(495,225,50).size() != 3) bad++;		// H, I, J still found
+		if (!tree.remove(a)) bad++;						// the root
+		bad += testSize(tree, 9);
+		if (tree.getPoint() == a || tree.findInCircle(150,450,150).size() != 2) bad++;	// B, C
+
+		if (bad==0) System.out.println("remove test passed!");
+		else System.out.println("remove test failed!");
+
+		// moving points, which Dots can't do
+		List<Spot> spots = new ArrayList<Spot>();
+		for (int i = 0; i < 20; i++) spots.add(new Spot(40*i+10, 30*i+10));
+		PointQuadtree<Spot> spotTree = PointQuadtree.build(spots, 0,0,800,600);
+		bad = 0;
+		Spot s = spots.get(19);							// moving one right across the map
+		s.moveTo(100, 500);
+		if (!spotTree.update(s, 770, 580) || spotTree.findInCircle(100,500,1).size() != 1 || spotTree.size() != 20) bad++;
+
+		Spot root = spotTree.getPoint();				// has children, so only stays put when loose
+		spotTree.setLoose(true);
+		root.moveTo(root.getX()+0.5, root.getY()+0.5);
+		if (!spotTree.update(root, root.getX()-0.5, root.getY()-0.5) || spotTree.getPoint() != root) bad++;
+		spotTree.setLoose(false);
+		root.moveTo(root.getX()+0.5, root.getY()+0.5);
+		if (!spotTree.update(root, root.getX()-0.5, root.getY()-0.5) || spotTree.getPoint() == root) bad++;
+		if (spotTree.findInCircle(root.getX(), root.getY(), 0).size() != 1) bad++;
+
+		s.moveTo(900, 100);								// off the map
+		if (spotTree.update(s, 100, 500) || spotTree.size() != 19 || spotTree.allPoints().contains(s)) bad++;
+		if (bad==0) System.out.println("update test passed!");
+		else System.out.println("update test failed!");
+	}
+
+	/**
+	 * all pairs within a distance, compared with checking every pair by brute force
+	 * (on random points, a few of them at the same spot)
+	 */
+	private static void testPairs() {
+		Random random = new Random(5);
+		List<Dot> dots = new ArrayList<Dot>();
+		for (int i = 0; i < 500; i++) dots.add(new Dot(800*random.nextDouble(), 600*random.nextDouble()));
+		for (int i = 0; i < 3; i++) dots.add(new Dot(dots.get(0).getX(), dots.get(0).getY()));
+		double r = 20;
+		PointQuadtree<Dot> tree = PointQuadtree.build(dots, 0,0,800,600);
+
+		int expected = 0;
+		for (int i = 0; i < dots.size(); i++) {
+			for (int j = i+1; j < dots.size(); j++) {
+				double dx = dots.get(i).getX()-dots.get(j).getX(), dy = dots.get(i).getY()-dots.get(j).getY();
+				if (dx*dx + dy*dy <= r*r) expected++;
+			}
+		}
+		Set<String> seen = new HashSet<String>();
+		int[] found = new int[1];
+		int[] repeats = new int[1];
+		tree.findAllPairsWithin(r, (a, b) -> {
+			found[0]++;
+			int ia = System.identityHashCode(a), ib = System.identityHashCode(b);
+			if (a == b || !seen.add(Math.min(ia, ib)+","+Math.max(ia, ib))) repeats[0]++;
+		});
+		if (found[0] == expected && repeats[0] == 0) System.out.println("pairs test passed!");
+		else System.out.println("pairs test failed! got "+found[0]+" pairs ("+repeats[0]+" repeated) but expected "+expected);
+	}
+
+	/**
+	 * a batch of queries run in parallel should give what running them one at a time does
+	 */
+	private static void testBatch() {
+		Random random = new Random(6);
+		List<Dot> dots = new ArrayList<Dot>();
+		for (int i = 0; i < 20000; i++) dots.add(new Dot(800*random.nextDouble(), 600*random.nextDouble()));
+		PointQuadtree<Dot> tree = PointQuadtree.build(dots, 0,0,800,600);
+		int n = 2000;
+		double[] cxs = new double[n], cys = new double[n], crs = new double[n];
+		for (int i = 0; i < n; i++) {
+			cxs[i] = 800*random.nextDouble(); cys[i] = 600*random.nextDouble(); crs[i] = 30*random.nextDouble();
+		}
+		List<List<Dot>> found = tree.findInCircles(cxs, cys, crs);
+		int[] counts = tree.countInCircles(cxs, cys, crs);
+		int bad = 0;
+		for (int i = 0; i < n; i++) {
+			List<Dot> expected = tree.findInCircle(cxs[i], cys[i], crs[i]);
+			if (!found.get(i).equals(expected) || counts[i] != expected.size()) bad++;
+		}
+		if (bad==0) System.out.println("batch test passed!");
+		else System.out.println("batch test failed!");
+	}
+
+	/**
+	 * nearest points, compared with sorting all the points by distance
+	 */
+	private static void testNearest() {
+		Random random = new Random(7);
+		List<Dot> dots = new ArrayList<Dot>();
+		for (int i = 0; i < 2000; i++) dots.add(new Dot(800*random.nextDouble(), 600*random.nextDouble()));
+		PointQuadtree<Dot> tree = new PointQuadtree<Dot>(dots.get(0), 0,0,800,600);
+		for (int i = 1; i < dots.size(); i++) tree.insert(dots.get(i));
+		int bad = 0;
+		for (int i = 0; i < 50; i++) {
+			double x = 900*random.nextDouble()-50, y = 700*random.nextDouble()-50;	// some outside the rectangle
+			List<Dot> sorted = new ArrayList<Dot>(dots);
+			sorted.sort((a, b) -> Double.compare(Math.hypot(a.getX()-x, a.getY()-y), Math.hypot(b.getX()-x, b.getY()-y)));
+			if (!tree.kNearest(x, y, 10).equals(sorted.subList(0, 10))) bad++;
+			if (tree.nearest(x, y) != sorted.get(0)) bad++;
+		}
+		if (tree.kNearest(0, 0, 5000).size() != 2000 || !tree.kNearest(0, 0, 0).isEmpty()) bad++;
+		if (bad==0) System.out.println("nearest test passed!");
+		else System.out.println("nearest test failed!");
+	}
+
+	/**
+	 * rectangle, polygon and general shape queries, compared with testing every point
+	 */
+	private static void testRegions() {
+		Random random = new Random(8);
+		List<Dot> dots = new ArrayList<Dot>();
+		for (int i = 0; i < 5000; i++) dots.add(new Dot(random.nextInt(801), random.nextInt(601)));
+		PointQuadtree<Dot> tree = PointQuadtree.build(dots, 0,0,800,600);
+		int bad = 0;
+
+		// the whole map, and a viewport
+		if (tree.findInRect(0,0,800,600).size() != 5000) bad++;
+		int expected = 0;
+		for (Dot d : dots) if (100 <= d.getX() && d.getX() <= 400 && 50 <= d.getY() && d.getY() <= 300) expected++;
+		if (tree.findInRect(100,50,400,300).size() != expected) bad++;
+
+		// a triangle, as a polygon and as the equivalent general shape
+		double[] xs = { 100, 700, 400 }, ys = { 100, 150, 550 };
+		Path2D.Double triangle = new Path2D.Double();
+		triangle.moveTo(xs[0], ys[0]); triangle.lineTo(xs[1], ys[1]); triangle.lineTo(xs[2], ys[2]); triangle.closePath();
+		expected = 0;
+		for (Dot d : dots) if (triangle.contains(d.getX(), d.getY())) expected++;
+		if (tree.findInPolygon(xs, ys).size() != expected) bad++;
+		if (tree.findInShape(triangle).size() != expected) bad++;
+		if (bad==0) System.out.println("regions test passed!");
+		else System.out.println("regions test failed!");
+	}
+
+	/**
+	 * metrics recorded by a tree: a built tree's depths should be logarithmic, and its queries' work should
+	 * match what Geometry counts
+	 */
+	private static void testMetrics() {
+		List<Dot> diagonal = new ArrayList<Dot>();
+		for (int i = 0; i < 1000; i++) diagonal.add(new Dot(i, i));
+		QuadtreeMetrics metrics = new QuadtreeMetrics();
+		PointQuadtree<Dot> tree = PointQuadtree.build(diagonal, 0,0,1000,1000, metrics);
+		int bad = 0;
+		if (metrics.getInserts() != 1000 || metrics.getMaxDepth() > 20 || metrics.getBuildTimeHistogram().length != 64) bad++;
+
+		if (metrics.getHeight() != tree.getHeight() || tree.getHeight() > 20) bad++;
+		tree.insert(new Dot(999.5, 999.5));
+		if (metrics.getInserts() != 1001 || metrics.getHeight() != tree.getHeight()) bad++;
+
+		Geometry.resetNumCircleRectangleTests();
+		Geometry.resetNumInCircleTests();
+		int hits = tree.findInCircle(500, 500, 10).size() + tree.findInCircle(0, 1000, 10).size();
+		if (metrics.getQueries() != 2 || metrics.getHits() != hits
+				|| metrics.getNodeVisits() != Geometry.getNumCircleRectangleTests()
+				|| metrics.getPointTests() != Geometry.getNumInCircleTests()
+				|| metrics.getPrunedSubtrees() != metrics.getNodeVisits() - metrics.getPointTests()) bad++;
+		metrics.reset();
+		if (metrics.getQueries() != 0 || metrics.getMaxDepth() != 0) bad++;
+		if (bad==0) System.out.println("metrics test passed!");
+		else System.out.println("metrics test failed! "+metrics);
+	}
+
+	/**
+	 * saving a tree to a file and querying it mapped back in should give the same points (by id) in the same order
+	 */
+	private static void testMapped() {
+		Random random = new Random(9);
+		List<Dot> dots = new ArrayList<Dot>();
+		for (int i = 0; i < 2800; i++) dots.add(new Dot(800*random.nextDouble(), 600*random.nextDouble()));
+		for (int i = 0; i < 200; i++) {		// and some at the same spots, to be saved as duplicates
+			Dot d = dots.get(random.nextInt(50));
+			dots.add(new Dot(d.getX(), d.getY()));
+		}
+		PointQuadtree<Dot> tree = new PointQuadtree<Dot>(dots.get(0), 0,0,800,600);
+		for (int i = 1; i < dots.size(); i++) tree.insert(dots.get(i));
+		Map<Dot, Integer> ids = new IdentityHashMap<Dot, Integer>();
+		for (int i = 0; i < dots.size(); i++) ids.put(dots.get(i), i);
+
+		int bad = 0;
+		try {
+			Path file = Files.createTempFile("quadtree", ".qdt");
+			try {
+				MappedQuadtree.write(tree, file, ids::get);
+				MappedQuadtree mapped = MappedQuadtree.open(file);
+				if (mapped.size() != 3000 || mapped.allIds().length != 3000) bad++;
+				for (int i = 0; i < 100; i++) {
+					double x = 800*random.nextDouble(), y = 600*random.nextDouble(), r = 50*random.nextDouble();
+					List<Dot> expected = tree.findInCircle(x, y, r);
+					int[] found = mapped.findInCircle(x, y, r);
+					if (found.length != expected.size()) bad++;
+					else for (int j = 0; j < found.length; j++) if (dots.get(found[j]) != expected.get(j)) bad++;
+				}
+			}
+			finally {
+				Files.delete(file);
+			}
+		}
+		catch (IOException e) {
+			System.err.println(e);
+			bad++;
+		}
+		if (bad==0) System.out.println("mapped test passed!");
+		else System.out.println("mapped test failed!");
+	}
+
+	/**
+	 * iterating and streaming, sequentially and in parallel, should see each point exactly once
+	 */
+	private static void testStreams() {
+		Random random = new Random(10);
+		List<Dot> dots = new ArrayList<Dot>();
+		for (int i = 0; i < 50000; i++) dots.add(new Dot(800*random.nextDouble(), 600*random.nextDouble()));
+		PointQuadtree<Dot> tree = PointQuadtree.build(dots, 0,0,800,600);
+		int bad = 0;
+
+		int iterated = 0;
+		for (Dot d : tree) iterated++;
+		if (iterated != 50000) bad++;
+		if (tree.stream().count() != 50000 || tree.spliterator().getExactSizeIfKnown() != 50000) bad++;
+		Set<Dot> seen = Collections.newSetFromMap(new ConcurrentHashMap<Dot, Boolean>());
+		if (tree.parallelStream().filter(seen::add).count() != 50000 || seen.size() != 50000) bad++;
+
+		int expected = tree.countInCircle(400, 300, 100);
+		if (tree.streamInCircle(400, 300, 100).count() != expected) bad++;
+		if (tree.streamInCircle(400, 300, 100).parallel().distinct().count() != expected) bad++;
+		if (tree.streamInCircle(400, 300, 100).findFirst().isEmpty()) bad++;
+		if (bad==0) System.out.println("streams test passed!");
+		else System.out.println("streams test failed!");
+	}
+
+	/**
+	 * a point that can be moved, for testing update
+	 */
+	private static class Spot implements Point2D {
+		private double x, y;
+
+		Spot(double x, double y) {
+			this.x = x; this.y = y;
+		}
+
+		void moveTo(double x, double y) {
+			this.x = x; this.y = y;
+		}
+
+		public double getX() {
+			return x;
+		}
+
+		public double getY() {
+			return y;
+		}
+	}
+
+	/**
+	 * a grid should find what the tree does, for circles and for pairs, including points inserted since it was
+	 * last sorted and pairs that reach past the neighboring cells
+	 */
+	private static void testGrid() {
+		Random random = new Random(16);
+		List<Dot> dots = new ArrayList<Dot>();
+		for (int i = 0; i < 2000; i++) dots.add(new Dot(800*random.nextDouble(), 600*random.nextDouble()));
+		PointQuadtree<Dot> tree = PointQuadtree.build(dots, 0,0,800,600);
+		GridIndex<Dot> grid = new GridIndex<Dot>(0,0,800,600, 10);
+		grid.rebuild(dots.subList(0, 1000));
+		for (int i = 1000; i < dots.size(); i++) grid.insert(dots.get(i));
+		grid.insert(new Dot(900, 100));		// outside, so dropped
+
+		int bad = 0;
+		if (grid.size() != dots.size()) bad++;
+		for (int i = 0; i < 200; i++) {
+			double cx = 800*random.nextDouble(), cy = 600*random.nextDouble(), cr = 40*random.nextDouble();
+			Set<Dot> expected = new HashSet<Dot>(tree.findInCircle(cx, cy, cr));
+			if (!new HashSet<Dot>(grid.findInCircle(cx, cy, cr)).equals(expected) || grid.countInCircle(cx, cy, cr) != expected.size()) bad++;
+		}
+		for (double r : new double[] { 5, 10, 25 }) {
+			int[] counts = new int[2];
+			tree.findAllPairsWithin(r, (a, b) -> counts[0]++);
+			grid.findAllPairsWithin(r, (a, b) -> counts[1]++);
+			if (counts[0] != counts[1]) bad++;
+		}
+		if (bad == 0) System.out.println("grid test passed!");
+		else System.out.println("grid test failed! "+bad+" results differ from the tree's");
+	}
+
+	/**
+	 * writers inserting and removing while readers query: a point inserted for good must stay visible
+	 * to a reader once it has seen it, no query may see a point twice, and at the end the tree must hold
+	 * exactly what was inserted and not removed (found in the order a PointQuadtree would give)
+	 */
+	private static void testConcurrent() {
+		ConcurrentQuadtree<Dot> tree = new ConcurrentQuadtree<Dot>(0,0,800,600);
+		int writers = 4, each = 5000;
+		List<List<Dot>> kept = new ArrayList<List<Dot>>(), dropped = new ArrayList<List<Dot>>();
+		Random random = new Random(17);
+		for (int w = 0; w < writers; w++) {
+			kept.add(new ArrayList<Dot>());
+			dropped.add(new ArrayList<Dot>());
+			for (int i = 0; i < each; i++) {
+				kept.get(w).add(new Dot(800*random.nextDouble(), 600*random.nextDouble()));
+				dropped.get(w).add(new Dot(800*random.nextDouble(), 600*random.nextDouble()));
+			}
+		}
+		Set<Dot> keepers = new HashSet<Dot>();
+		for (List<Dot> k : kept) keepers.addAll(k);
+
+		int[] bad = new int[1];
+		boolean[] done = new boolean[1];
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int w = 0; w < writers; w++) {
+			List<Dot> k = kept.get(w), d = dropped.get(w);
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < each; i++) {
+					tree.insert(k.get(i));
+					tree.insert(d.get(i));
+					if (i % 2 == 1 && !tree.remove(d.get(i-1))) synchronized (bad) { bad[0]++; }
+				}
+				for (int i = 1; i < each; i += 2) {
+					if (!tree.remove(d.get(i))) synchronized (bad) { bad[0]++; }
+				}
+			}));
+		}
+		for (int r = 0; r < 2; r++) {
+			threads.add(new Thread(() -> {
+				int seen = 0;
+				while (true) {
+					boolean last;
+					synchronized (done) { last = done[0]; }
+					Set<Dot> found = Collections.newSetFromMap(new IdentityHashMap<Dot, Boolean>());
+					int keepersFound = 0, repeats = 0;
+					for (Dot dot : tree.findInCircle(400, 300, 500)) {
+						if (!found.add(dot)) repeats++;
+						if (keepers.contains(dot)) keepersFound++;
+					}
+					if (repeats > 0 || keepersFound < seen) synchronized (bad) { bad[0]++; }
+					seen = keepersFound;
+					if (last) break;
+				}
+			}));
+		}
+		for (Thread t : threads) t.start();
+		try {
+			for (int w = 0; w < writers; w++) threads.get(w).join();
+			synchronized (done) { done[0] = true; }
+			for (Thread t : threads) t.join();
+		}
+		catch (InterruptedException e) {
+			System.err.println(e);
+			bad[0]++;
+		}
+
+		if (tree.size() != keepers.size() || !new HashSet<Dot>(tree.allPoints()).equals(keepers)) bad[0]++;
+		if (tree.countInCircle(400, 300, 500) != keepers.size()) bad[0]++;
+		// and with one writer, the same shape as a PointQuadtree
+		ConcurrentQuadtree<Dot> single = new ConcurrentQuadtree<Dot>(0,0,800,600);
+		List<Dot> dots = kept.get(0);
+		PointQuadtree<Dot> plain = new PointQuadtree<Dot>(dots.get(0), 0,0,800,600);
+		single.insert(dots.get(0));
+		for (int i = 1; i < dots.size(); i++) {
+			plain.insert(dots.get(i));
+			single.insert(dots.get(i));
+		}
+		if (!single.findInCircle(300, 200, 150).equals(plain.findInCircle(300, 200, 150))) bad[0]++;
+
+		if (bad[0] == 0) System.out.println("concurrent test passed!");
+		else System.out.println("concurrent test failed! "+bad[0]+" inconsistencies");
+	}
+
+	/**
+	 * a Morton-ordered tree should find what the point quadtree does, including points inserted since it
+	 * was last sorted, points on the rectangle's far edges, and clusters finer than its cells
+	 */
+	private static void testMorton() {
+		Random random = new Random(19);
+		List<Dot> dots = new ArrayList<Dot>();
+		for (int i = 0; i < 3000; i++) dots.add(new Dot(800*random.nextDouble(), 600*random.nextDouble()));
+		for (int i = 0; i < 100; i++) dots.add(new Dot(400 + 0.001*random.nextDouble(), 300 + 0.001*random.nextDouble()));
+		dots.add(new Dot(800, 600));
+		dots.add(new Dot(0, 600));
+		PointQuadtree<Dot> tree = PointQuadtree.build(dots, 0,0,800,600);
+		MortonQuadtree<Dot> morton = new MortonQuadtree<Dot>(0,0,800,600);
+		morton.rebuild(dots.subList(0, 1000));
+		for (int i = 1000; i < dots.size(); i++) morton.insert(dots.get(i));
+		morton.insert(new Dot(-1, 100));		// outside, so dropped
+
+		int bad = 0;
+		if (morton.size() != dots.size() || !new HashSet<Dot>(morton.allPoints()).equals(new HashSet<Dot>(dots))) bad++;
+		double[][] queries = { {400,300,0.0005}, {800,600,1}, {0,600,0}, {400,300,1000} };
+		for (int i = 0; i < 204; i++) {
+			double cx = 800*random.nextDouble(), cy = 600*random.nextDouble(), cr = 40*random.nextDouble();
+			if (i >= 200) { cx = queries[i-200][0]; cy = queries[i-200][1]; cr = queries[i-200][2]; }
+			Set<Dot> expected = new HashSet<Dot>(tree.findInCircle(cx, cy, cr));
+			if (!new HashSet<Dot>(morton.findInCircle(cx, cy, cr)).equals(expected) || morton.countInCircle(cx, cy, cr) != expected.size()) bad++;
+		}
+		if (bad == 0) System.out.println("morton test passed!");
+		else System.out.println("morton test failed! "+bad+" results differ from the tree's");
+	}
+
+	/**
+	 * thousands of points at one spot should sit at a single node, not make a chain thousands deep: every query
+	 * still finds each of them, removing and moving them works, and building puts them together too
+	 */
+	private static void testDuplicates() {
+		int n = 5000;
+		PointQuadtree<Spot> tree = new PointQuadtree<Spot>(new Spot(400,300), 0,0,800,600);
+		QuadtreeMetrics metrics = new QuadtreeMetrics();
+		tree.setMetrics(metrics);
+		List<Spot> same = new ArrayList<Spot>();
+		for (int i = 0; i < n; i++) same.add(new Spot(100,100));
+		for (Spot d : same) tree.insert(d);
+		tree.insert(new Spot(101,100));
+		tree.insert(new Spot(300,500));
+		int bad = 0;
+		if (tree.size() != n+3 || tree.allPoints().size() != n+3) bad++;
+		if (metrics.getMaxDepth() > 2) bad++;
+		if (tree.findInCircle(100,100,0).size() != n || tree.countInCircle(100,100,1) != n+1) bad++;
+		if (tree.findInRect(99,99,101,101).size() != n+1 || tree.stream().count() != n+3) bad++;
+		if (tree.kNearest(100,100,n+1).size() != n+1 || tree.kNearest(100,100,n+1).get(n).getX() != 101) bad++;
+		PointQuadtree<Spot> built = PointQuadtree.build(same, 0,0,800,600);
+		if (built.size() != n || built.getDuplicates().size() != n-1 || built.hasChild(1)) bad++;
+
+		// pairs among a few at one spot, and with a neighbor
+		PointQuadtree<Dot> small = new PointQuadtree<Dot>(new Dot(400,300), 0,0,800,600);
+		for (int i = 0; i < 10; i++) small.insert(new Dot(100,100));
+		small.insert(new Dot(101,100));
+		int[] pairs = new int[1];
+		small.findAllPairsWithin(1, (a, b) -> pairs[0]++);
+		if (pairs[0] != 45 + 10) bad++;
+
+		// removing the node's own point hands its place to another at the spot; moving one away takes it out of the group
+		Spot first = tree.findInCircle(100,100,0).get(0);
+		if (!tree.remove(first) || tree.findInCircle(100,100,0).contains(first)) bad++;
+		Spot moved = same.get(n/2);
+		moved.moveTo(700, 100);
+		if (!tree.update(moved, 100, 100) || !tree.findInCircle(700,100,0).contains(moved)) bad++;
+		if (tree.size() != n+2 || tree.allPoints().size() != n+2) bad++;
+		if (tree.findInCircle(100,100,0).size() != n-2) bad++;
+		if (bad == 0) System.out.println("duplicates test passed!");
+		else System.out.println("duplicates test failed!");
+	}
+
+	/**
+	 * points inserted along the diagonal would make a chain, but with rebalancing on the tree should stay
+	 * logarithmically deep, rebuilding now and then (moving a few points each per insert, on average),
+	 * and keep every point, duplicates included
+	 */
+	private static void testRebalancing() {
+		int n = 30000;
+		PointQuadtree<Dot> tree = new PointQuadtree<Dot>(new Dot(0,0), 0,0,n,n);
+		QuadtreeMetrics metrics = new QuadtreeMetrics();
+		tree.setMetrics(metrics);
+		tree.setRebalancing(true);
+		for (int i = 1; i < n; i++) tree.insert(new Dot(i, i));
+		for (int i = 0; i < 10; i++) tree.insert(new Dot(n/2, n/2));
+		int bad = 0;
+		bad += testSize(tree, n+10);
+		if (tree.findInCircle(n-1, n-1, 1.5).size() != 2 || tree.findInCircle(n/2, n/2, 0).size() != 11) bad++;
+		if (tree.countInCircle(0, 0, 100) != 71) bad++;
+		if (metrics.getRebuilds() == 0 || metrics.getRebuiltPoints() > 40L*n) bad++;
+
+		// how deep the tree is now, walking it with a stack
+		int deepest = 0;
+		List<PointQuadtree<Dot>> nodes = new ArrayList<PointQuadtree<Dot>>();
+		List<Integer> depths = new ArrayList<Integer>();
+		nodes.add(tree); depths.add(0);
+		while (!nodes.isEmpty()) {
+			PointQuadtree<Dot> node = nodes.remove(nodes.size()-1);
+			int depth = depths.remove(depths.size()-1);
+			deepest = Math.max(deepest, depth);
+			for (int q = 1; q <= 4; q++) {
+				if (node.hasChild(q)) {
+					nodes.add(node.getChild(q)); depths.add(depth+1);
+				}
+			}
+		}
+		if (deepest > Math.log(n) / Math.log(4.0/3)) bad++;
+		// the height kept up to date through the rebuilds, while the deepest placing is history
+		if (tree.getHeight() != deepest || metrics.getHeight() != deepest || metrics.getMaxDepth() < deepest) bad++;
+
+		// points within one unit cell chain whatever is rebuilt, so they shouldn't be rebuilt over and over
+		Random random = new Random(20);
+		PointQuadtree<Dot> cluster = new PointQuadtree<Dot>(new Dot(50,50), 0,0,100,100);
+		QuadtreeMetrics clusterMetrics = new QuadtreeMetrics();
+		cluster.setMetrics(clusterMetrics);
+		cluster.setRebalancing(true);
+		for (int i = 0; i < 10000; i++) cluster.insert(new Dot(5+random.nextDouble(), 5+random.nextDouble()));
+		bad += testSize(cluster, 10001);
+		if (clusterMetrics.getRebuilds() > 10 || clusterMetrics.getRebuiltPoints() > 100) bad++;
+		if (bad==0) System.out.println("rebalancing test passed!");
+		else System.out.println("rebalancing test failed!");
+	}
+
+	/**
+	 * the points near a segment should be those a brute-force check finds; a circle moving along it should
+	 * hit first the one a brute-force check of time of impact says, even one that it would have passed
+	 * right through between its start and end
+	 */
+	private static void testSwept() {
+		Random random = new Random(24);
+		PointQuadtree<Dot> tree = new PointQuadtree<Dot>(new Dot(400,300), 0,0,800,600);
+		List<Dot> dots = new ArrayList<Dot>();
+		dots.add(tree.getPoint());
+		for (int i = 0; i < 2000; i++) {
+			Dot dot = new Dot(800*random.nextDouble(), 600*random.nextDouble());
+			dots.add(dot);
+			tree.insert(dot);
+		}
+		int bad = 0;
+		for (int q = 0; q < 200; q++) {
+			double ax = 800*random.nextDouble(), ay = 600*random.nextDouble();
+			double bx = 800*random.nextDouble(), by = 600*random.nextDouble(), r = 20*random.nextDouble();
+			int near = 0;
+			Dot first = null;
+			double firstT = 2;
+			for (Dot d : dots) {
+				// distance from the segment, by its nearest spot
+				double dx = bx-ax, dy = by-ay;
+				double t = Math.max(0, Math.min(1, ((d.getX()-ax)*dx + (d.getY()-ay)*dy) / (dx*dx + dy*dy)));
+				if (Math.hypot(ax + t*dx - d.getX(), ay + t*dy - d.getY()) <= r) near++;
+				double hit = PointQuadtree.timeOfImpact(ax, ay, bx, by, d.getX(), d.getY(), r);
+				if (hit >= 0 && hit < firstT) {
+					first = d; firstT = hit;
+				}
+			}
+			if (tree.findAlongSegment(ax, ay, bx, by, r).size() != near) bad++;
+			// (by when it is hit, as several may be hit at once, particularly at the start)
+			Dot hit = tree.firstAlongSegment(ax, ay, bx, by, r, null);
+			if ((hit == null) != (first == null)) bad++;
+			else if (hit != null && PointQuadtree.timeOfImpact(ax, ay, bx, by, hit.getX(), hit.getY(), r) != firstT) bad++;
+		}
+
+		// a circle of radius 1 jumping from (0,0) to (10,0) passes through a point at (5,0.5), first touching it
+		// 0.4 of the way along; the point itself is skipped when excluded
+		PointQuadtree<Dot> small = new PointQuadtree<Dot>(new Dot(5,0.5), 0,0,100,100);
+		small.insert(new Dot(8,0));
+		if (Math.abs(PointQuadtree.timeOfImpact(0,0, 10,0, 5,0.5, 1) - (5-Math.sqrt(0.75))/10) > 1e-9) bad++;
+		if (PointQuadtree.timeOfImpact(0,0, 10,0, 5,2, 1) != -1 || PointQuadtree.timeOfImpact(0,0, 10,0, 0.5,0, 1) != 0) bad++;
+		if (small.findInCircle(0,0,1).size() + small.findInCircle(10,0,1).size() != 0) bad++;
+		if (small.firstAlongSegment(0,0, 10,0, 1, null) != small.getPoint()) bad++;
+		Dot second = small.firstAlongSegment(0,0, 10,0, 1, small.getPoint());
+		if (second == null || second.getX() != 8) bad++;
+		if (bad==0) System.out.println("swept test passed!");
+		else System.out.println("swept test failed!");
+	}
+
+	/**
+	 * circles of very different sizes in a loose quadtree should be found overlapping a query circle, and
+	 * overlapping each other, exactly when a brute-force check says so; centers as in a point quadtree
+	 */
+	private static void testLoose() {
+		Random random = new Random(25);
+		Map<Dot, Double> radii = new IdentityHashMap<Dot, Double>();
+		LooseQuadtree<Dot> tree = new LooseQuadtree<Dot>(0,0,800,600, radii::get, 4);
+		List<Dot> dots = new ArrayList<Dot>();
+		for (int i = 0; i < 1500; i++) {
+			Dot dot = new Dot(800*random.nextDouble(), 600*random.nextDouble());
+			radii.put(dot, (i % 10 == 0) ? 10 + 70*random.nextDouble() : 3*random.nextDouble());
+			dots.add(dot);
+		}
+		for (int i = 0; i < 10; i++) {		// some at one spot, and one outside (ignored)
+			Dot dot = new Dot(100, 100);
+			radii.put(dot, 1.0);
+			dots.add(dot);
+		}
+		Dot outside = new Dot(900, 100);
+		radii.put(outside, 500.0);
+		for (Dot d : dots) tree.insert(d);
+		tree.insert(outside);
+		int bad = 0;
+		if (tree.size() != dots.size() || tree.allPoints().size() != dots.size()) bad++;
+		for (int q = 0; q < 200; q++) {
+			double cx = 800*random.nextDouble(), cy = 600*random.nextDouble(), cr = 40*random.nextDouble();
+			int overlapping = 0, centered = 0;
+			for (Dot d : dots) {
+				double dist = Math.hypot(d.getX()-cx, d.getY()-cy);
+				if (dist <= cr + radii.get(d)) overlapping++;
+				if (dist <= cr) centered++;
+			}
+			if (tree.findOverlapping(cx, cy, cr).size() != overlapping) bad++;
+			if (tree.findInCircle(cx, cy, cr).size() != centered || tree.countInCircle(cx, cy, cr) != centered) bad++;
+		}
+		int pairs = 0;
+		for (int i = 0; i < dots.size(); i++) {
+			for (int j = i+1; j < dots.size(); j++) {
+				Dot a = dots.get(i), b = dots.get(j);
+				if (Math.hypot(a.getX()-b.getX(), a.getY()-b.getY()) <= radii.get(a) + radii.get(b)) pairs++;
+			}
+		}
+		Map<Dot, Integer> index = new IdentityHashMap<Dot, Integer>();
+		for (int i = 0; i < dots.size(); i++) index.put(dots.get(i), i);
+		Set<Long> seen = new HashSet<Long>();
+		int[] found = new int[2];		// pairs, and repeats
+		tree.findAllOverlappingPairs((a, b) -> {
+			// never the same pair twice (either way round), nor an object with itself
+			int i = Math.min(index.get(a), index.get(b)), j = Math.max(index.get(a), index.get(b));
+			if (i == j || !seen.add((long) i * dots.size() + j)) found[1]++;
+			else found[0]++;
+		});
+		if (found[0] != pairs || found[1] != 0) bad++;
+		if (bad==0) System.out.println("loose test passed!");
+		else System.out.println("loose test failed!");
+	}
+
 	public static void main(String[] args) {
 		test0();
 		test1();
 
 		test2();	// my test
+		testBuild();
+		testDeepChain();
+		testBucket();
+		testCompact();
+		testRemoveUpdate();
+		testPairs();
+		testBatch();
+		testNearest();
+		testRegions();
+		testMetrics();
+		testMapped();
+		testStreams();
+		testGrid();
+		testConcurrent();
+		testGrowing();
+		testMorton();
+		testDuplicates();
+		testRebalancing();
+		testSwept();
+		testLoose();
 	}
 }
@@ -0,0 +1,48 @@
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * What the different ways of indexing points in 2D have in common: holding points
+ * and finding those within a circle, so that one can stand in for another
+ */
+public interface SpatialIndex<E extends Point2D> {
+	/**
+	 * Inserts the point (a point outside the index's region is ignored)
+	 */
+	void insert(E point);
+
+	/**
+	 * Returns the number of points held
+	 */
+	int size();
+
+	/**
+	 * Builds a list of all the points held
+	 */
+	List<E> allPoints();
+
+	/**
+	 * Finds all points within the circle
+	 * @param cx	circle center x
+	 * @param cy  	circle center y
+	 * @param cr  	circle radius
+	 */
+	List<E> findInCircle(double cx, double cy, double cr);
+
+	/**
+	 * Hands each point within the circle to the action, without collecting them
+	 * @param cx		circle center x
+	 * @param cy  		circle center y
+	 * @param cr  		circle radius
+	 * @param action	called with each point in the circle
+	 */
+	void findInCircle(double cx, double cy, double cr, Consumer<? super E> action);
+
+	/**
+	 * Counts the points within the circle
+	 * @param cx	circle center x
+	 * @param cy  	circle center y
+	 * @param cr  	circle radius
+	 */
+	int countInCircle(double cx, double cy, double cr);
+}